@@ -29,6 +29,8 @@ public class SmimeError implements Parcelable {
 
     // possible values for errorId
     public static final int CLIENT_SIDE_ERROR = -1;
+    // request rejected by the client-side concurrency limiter, retry later
+    public static final int CLIENT_SIDE_OVERLOADED = -2;
     public static final int GENERIC_ERROR = 0;
     public static final int INCOMPATIBLE_API_VERSIONS = 1;
     public static final int NO_OR_WRONG_PASSPHRASE = 2;
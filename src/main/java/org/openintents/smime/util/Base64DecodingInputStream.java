@@ -0,0 +1,175 @@
+package org.openintents.smime.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes Base64 (RFC 2045) while reading.
+ * <p/>
+ * Line breaks and other whitespace are skipped, any other character outside of the alphabet
+ * causes an IOException. Decoding stops at the first padding character, the final padding may
+ * also be missing, as written by encoders which omit it. Input is read and
+ * decoded through buffers which are reused for the lifetime of the stream.
+ */
+public class Base64DecodingInputStream extends FilterInputStream {
+    private static final byte SKIP = -1;
+    private static final byte PAD = -2;
+    private static final byte INVALID = -3;
+
+    private static final byte[] DECODE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            DECODE[i] = INVALID;
+        }
+        byte[] alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+        for (int i = 0; i < alphabet.length; i++) {
+            DECODE[alphabet[i]] = (byte) i;
+        }
+        DECODE[' '] = SKIP;
+        DECODE['\t'] = SKIP;
+        DECODE['\r'] = SKIP;
+        DECODE['\n'] = SKIP;
+        DECODE['='] = PAD;
+    }
+
+    private final byte[] mInput = new byte[4096];
+    // decoded bytes not read yet, three bytes per group of four characters
+    private final byte[] mOutput = new byte[mInput.length / 4 * 3 + 3];
+    private int mOutputPosition;
+    private int mOutputLength;
+
+    private int mGroup;
+    private int mGroupCount;
+    private boolean mEnd;
+
+    public Base64DecodingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mOutputPosition == mOutputLength && !fill()) {
+            return -1;
+        }
+        return mOutput[mOutputPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        if (mOutputPosition == mOutputLength && !fill()) {
+            return -1;
+        }
+        int n = Math.min(count, mOutputLength - mOutputPosition);
+        System.arraycopy(mOutput, mOutputPosition, buffer, offset, n);
+        mOutputPosition += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (mOutputPosition < mOutputLength || fill())) {
+            int step = (int) Math.min(n - skipped, mOutputLength - mOutputPosition);
+            mOutputPosition += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return mOutputLength - mOutputPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Decodes the next chunk of input
+     *
+     * @return false at the end of the data
+     */
+    private boolean fill() throws IOException {
+        mOutputPosition = 0;
+        mOutputLength = 0;
+        while (mOutputLength == 0) {
+            if (mEnd) {
+                return false;
+            }
+            int read = in.read(mInput, 0, mInput.length);
+            if (read == -1) {
+                if (mGroupCount == 1) {
+                    throw new IOException("truncated base64 input");
+                }
+                // unpadded final group
+                mOutputLength = finishGroup(mOutput, 0, mGroup, mGroupCount);
+                mGroup = 0;
+                mGroupCount = 0;
+                mEnd = true;
+                return mOutputLength > 0;
+            }
+            decode(read);
+        }
+        return true;
+    }
+
+    private void decode(int length) throws IOException {
+        byte[] output = mOutput;
+        int n = mOutputLength;
+        int group = mGroup;
+        int groupCount = mGroupCount;
+
+        for (int i = 0; i < length; i++) {
+            int value = DECODE[mInput[i] & 0xff];
+            if (value >= 0) {
+                group = (group << 6) | value;
+                if (++groupCount == 4) {
+                    output[n] = (byte) (group >> 16);
+                    output[n + 1] = (byte) (group >> 8);
+                    output[n + 2] = (byte) group;
+                    n += 3;
+                    group = 0;
+                    groupCount = 0;
+                }
+            } else if (value == PAD) {
+                if (groupCount == 1) {
+                    throw new IOException("invalid base64 padding");
+                }
+                n = finishGroup(output, n, group, groupCount);
+                group = 0;
+                groupCount = 0;
+                mEnd = true;
+                break;
+            } else if (value == INVALID) {
+                throw new IOException("invalid base64 character " + (mInput[i] & 0xff));
+            }
+        }
+
+        mOutputLength = n;
+        mGroup = group;
+        mGroupCount = groupCount;
+    }
+
+    /**
+     * Writes the bytes of an incomplete final group, "xx" encodes one byte, "xxx" two
+     *
+     * @return new output position
+     */
+    private static int finishGroup(byte[] output, int n, int group, int groupCount) {
+        if (groupCount == 2) {
+            output[n++] = (byte) (group >> 4);
+        } else if (groupCount == 3) {
+            output[n++] = (byte) (group >> 10);
+            output[n++] = (byte) (group >> 2);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,158 @@
+package org.openintents.smime.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base64-encodes (RFC 2045) all data written to it, with optional line wrapping.
+ * <p/>
+ * Input is encoded in groups of three bytes through a lookup table into a buffer which is
+ * reused for the lifetime of the stream. {@link #close()} writes the final group with padding
+ * and closes the underlying stream, {@link #finish()} does the same without closing it.
+ */
+public class Base64EncodingOutputStream extends FilterOutputStream {
+    public static final int MIME_LINE_LENGTH = 76;
+
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    private final int mLineLength;
+    private final byte[] mLineSeparator;
+
+    private final byte[] mBuffer = new byte[4096];
+    private int mBufferLength;
+    private int mLinePosition;
+
+    // up to two input bytes which do not form a whole group yet
+    private int mPending;
+    private int mPendingCount;
+    private boolean mFinished;
+
+    /**
+     * Encodes with MIME line length and CRLF line separators
+     */
+    public Base64EncodingOutputStream(OutputStream out) {
+        this(out, MIME_LINE_LENGTH, true);
+    }
+
+    /**
+     * @param lineLength characters per line, a multiple of 4, 0 disables line wrapping
+     * @param crlf       true to separate lines with CRLF, false for LF
+     */
+    public Base64EncodingOutputStream(OutputStream out, int lineLength, boolean crlf) {
+        super(out);
+        if (lineLength % 4 != 0) {
+            throw new IllegalArgumentException("line length must be a multiple of 4");
+        }
+        this.mLineLength = lineLength;
+        this.mLineSeparator = crlf ? new byte[]{'\r', '\n'} : new byte[]{'\n'};
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        mPending = (mPending << 8) | (oneByte & 0xff);
+        if (++mPendingCount == 3) {
+            encodeGroup(mPending);
+            mPending = 0;
+            mPendingCount = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        int end = offset + count;
+        int i = offset;
+        // complete a pending group first
+        while (mPendingCount != 0 && i < end) {
+            write(buffer[i++]);
+        }
+        while (end - i >= 3) {
+            encodeGroup(((buffer[i] & 0xff) << 16) | ((buffer[i + 1] & 0xff) << 8)
+                    | (buffer[i + 2] & 0xff));
+            i += 3;
+        }
+        while (i < end) {
+            write(buffer[i++]);
+        }
+    }
+
+    private void encodeGroup(int group) throws IOException {
+        // room for one group plus line separator
+        if (mBufferLength > mBuffer.length - 6) {
+            flushBuffer();
+        }
+        byte[] b = mBuffer;
+        int n = mBufferLength;
+        b[n] = ALPHABET[(group >>> 18) & 0x3f];
+        b[n + 1] = ALPHABET[(group >>> 12) & 0x3f];
+        b[n + 2] = ALPHABET[(group >>> 6) & 0x3f];
+        b[n + 3] = ALPHABET[group & 0x3f];
+        mBufferLength = n + 4;
+        endGroup();
+    }
+
+    private void endGroup() {
+        mLinePosition += 4;
+        if (mLineLength > 0 && mLinePosition >= mLineLength) {
+            for (byte separator : mLineSeparator) {
+                mBuffer[mBufferLength++] = separator;
+            }
+            mLinePosition = 0;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferLength > 0) {
+            out.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes the last group and terminates the last line, without closing the underlying stream.
+     * Nothing may be written afterwards.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        // room for the last group and two line separators
+        if (mBufferLength > mBuffer.length - 8) {
+            flushBuffer();
+        }
+        if (mPendingCount > 0) {
+            int group = mPending << (8 * (3 - mPendingCount));
+            mBuffer[mBufferLength++] = ALPHABET[(group >>> 18) & 0x3f];
+            mBuffer[mBufferLength++] = ALPHABET[(group >>> 12) & 0x3f];
+            mBuffer[mBufferLength++] = (mPendingCount == 2)
+                    ? ALPHABET[(group >>> 6) & 0x3f] : (byte) '=';
+            mBuffer[mBufferLength++] = '=';
+            mPendingCount = 0;
+            endGroup();
+        }
+        if (mLineLength > 0 && mLinePosition > 0) {
+            for (byte separator : mLineSeparator) {
+                mBuffer[mBufferLength++] = separator;
+            }
+            mLinePosition = 0;
+        }
+        flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
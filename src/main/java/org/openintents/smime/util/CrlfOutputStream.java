@@ -0,0 +1,74 @@
+package org.openintents.smime.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts all line endings (LF, CR, CRLF) to CRLF while writing, as required for content to be
+ * signed (RFC 5751, section 3.1.1). Runs without line breaks are passed to the underlying
+ * stream without copying. Closing this stream closes the underlying stream.
+ */
+public class CrlfOutputStream extends FilterOutputStream {
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    // the last byte was a CR, which has been written as CRLF already
+    private boolean mAfterCr;
+
+    public CrlfOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Wraps a data source, e.g., the body for ACTION_SIGN, so that it is canonicalized while it
+     * is streamed to the provider
+     */
+    public static SMimeApi.SMimeDataSource canonicalize(final SMimeApi.SMimeDataSource source) {
+        return new SMimeApi.SMimeDataSource() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                OutputStream crlf = new CrlfOutputStream(os);
+                source.writeTo(crlf);
+                crlf.flush();
+            }
+        };
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (oneByte == '\n') {
+            if (!mAfterCr) {
+                out.write(CRLF);
+            }
+            mAfterCr = false;
+        } else if (oneByte == '\r') {
+            out.write(CRLF);
+            mAfterCr = true;
+        } else {
+            out.write(oneByte);
+            mAfterCr = false;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        int end = offset + count;
+        int runStart = offset;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b != '\n' && b != '\r') {
+                continue;
+            }
+            if (i > runStart) {
+                out.write(buffer, runStart, i - runStart);
+                mAfterCr = false;
+            }
+            write(b);
+            runStart = i + 1;
+        }
+        if (end > runStart) {
+            out.write(buffer, runStart, end - runStart);
+            mAfterCr = false;
+        }
+    }
+}
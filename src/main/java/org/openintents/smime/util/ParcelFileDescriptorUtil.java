@@ -62,6 +62,22 @@ public class ParcelFileDescriptorUtil {
         return t;
     }
 
+    /**
+     * Copies all data from in to out, does not close the streams.
+     *
+     * @return number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[4096];
+        long total = 0;
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+            total += len;
+        }
+        return total;
+    }
+
     static class TransferThread extends Thread {
         final InputStream mIn;
         final OutputStream mOut;
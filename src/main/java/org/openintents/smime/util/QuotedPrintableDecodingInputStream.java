@@ -0,0 +1,146 @@
+package org.openintents.smime.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes quoted-printable (RFC 2045, section 6.7) while reading.
+ * <p/>
+ * Soft line breaks (with CRLF or LF) are removed and escape sequences are decoded, malformed
+ * escape sequences are passed through unchanged. Whitespace added at the end of lines during
+ * transport is not removed. Input is read through a buffer which is reused for the lifetime of
+ * the stream.
+ */
+public class QuotedPrintableDecodingInputStream extends FilterInputStream {
+    private static final byte[] HEX_VALUE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_VALUE[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUE['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUE['A' + i] = (byte) (10 + i);
+            HEX_VALUE['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final byte[] mInput = new byte[4096];
+    private int mPosition;
+    private int mLimit;
+    private boolean mEof;
+
+    public QuotedPrintableDecodingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            if (!ensure(1)) {
+                return -1;
+            }
+            int b = mInput[mPosition] & 0xff;
+            if (b != '=') {
+                mPosition++;
+                return b;
+            }
+
+            // an escape sequence or soft line break needs up to two more bytes
+            ensure(3);
+            int available = mLimit - mPosition;
+            if (available >= 2 && mInput[mPosition + 1] == '\n') {
+                mPosition += 2;
+                continue;
+            }
+            if (available >= 3 && mInput[mPosition + 1] == '\r' && mInput[mPosition + 2] == '\n') {
+                mPosition += 3;
+                continue;
+            }
+            if (available >= 3) {
+                int high = HEX_VALUE[mInput[mPosition + 1] & 0xff];
+                int low = HEX_VALUE[mInput[mPosition + 2] & 0xff];
+                if (high != -1 && low != -1) {
+                    mPosition += 3;
+                    return (high << 4) | low;
+                }
+            }
+            // malformed, pass through
+            mPosition++;
+            return '=';
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        if (count == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < count) {
+            // copy runs without escapes directly
+            if (mPosition < mLimit && mInput[mPosition] != '=') {
+                buffer[offset + n++] = mInput[mPosition++];
+                continue;
+            }
+            if (n > 0 && (mPosition == mLimit || (mLimit - mPosition < 3 && !mEof))) {
+                // do not block for more input if some data is available, also not for the rest
+                // of an escape sequence
+                break;
+            }
+            int b = read();
+            if (b == -1) {
+                break;
+            }
+            buffer[offset + n++] = (byte) b;
+        }
+        return (n == 0) ? -1 : n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && read() != -1) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Makes at least count bytes available in the buffer, unless the input ends before
+     *
+     * @return false if not even one byte is available
+     */
+    private boolean ensure(int count) throws IOException {
+        if (mLimit - mPosition >= count || mEof) {
+            return mPosition < mLimit;
+        }
+        if (mPosition > 0) {
+            System.arraycopy(mInput, mPosition, mInput, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+        }
+        while (mLimit < count) {
+            int read = in.read(mInput, mLimit, mInput.length - mLimit);
+            if (read == -1) {
+                mEof = true;
+                break;
+            }
+            mLimit += read;
+        }
+        return mPosition < mLimit;
+    }
+}
@@ -0,0 +1,177 @@
+package org.openintents.smime.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes quoted-printable (RFC 2045, section 6.7) while writing.
+ * <p/>
+ * CRLF in the input is kept as hard line break, lone CR and LF are encoded, so write canonical
+ * text, e.g., through a {@link CrlfOutputStream}. Whitespace at the end of a line is encoded
+ * and lines are wrapped with soft line breaks at 76 characters. Output goes through a buffer
+ * which is reused for the lifetime of the stream. Closing this stream closes the underlying
+ * stream.
+ */
+public class QuotedPrintableEncodingOutputStream extends FilterOutputStream {
+    private static final int MAX_LINE_LENGTH = 76;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+    private static final boolean[] LITERAL = new boolean[256];
+
+    static {
+        for (int c = 33; c <= 126; c++) {
+            LITERAL[c] = c != '=';
+        }
+    }
+
+    private final byte[] mBuffer = new byte[4096];
+    private int mBufferLength;
+    private int mLinePosition;
+
+    // space or tab which is only written literally if no line break follows, -1 if none
+    private int mPendingWhitespace = -1;
+    private boolean mPendingCr;
+    private boolean mFinished;
+
+    public QuotedPrintableEncodingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        int b = oneByte & 0xff;
+        if (mPendingCr) {
+            mPendingCr = false;
+            if (b == '\n') {
+                writePendingWhitespace(true);
+                hardLineBreak();
+                return;
+            }
+            writePendingWhitespace(false);
+            writeEncoded('\r');
+        }
+
+        if (b == '\r') {
+            mPendingCr = true;
+        } else if (b == ' ' || b == '\t') {
+            writePendingWhitespace(false);
+            mPendingWhitespace = b;
+        } else {
+            writePendingWhitespace(false);
+            if (LITERAL[b]) {
+                writeLiteral(b);
+            } else {
+                writeEncoded(b);
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int b = buffer[i] & 0xff;
+            // fast path for the common case
+            if (LITERAL[b] && !mPendingCr && mPendingWhitespace == -1
+                    && mLinePosition < MAX_LINE_LENGTH - 1 && mBufferLength < mBuffer.length) {
+                mBuffer[mBufferLength++] = (byte) b;
+                mLinePosition++;
+            } else {
+                write(b);
+            }
+        }
+    }
+
+    private void writePendingWhitespace(boolean encode) throws IOException {
+        if (mPendingWhitespace == -1) {
+            return;
+        }
+        int whitespace = mPendingWhitespace;
+        mPendingWhitespace = -1;
+        if (encode) {
+            writeEncoded(whitespace);
+        } else {
+            writeLiteral(whitespace);
+        }
+    }
+
+    private void writeLiteral(int b) throws IOException {
+        reserve(1);
+        mBuffer[mBufferLength++] = (byte) b;
+        mLinePosition++;
+    }
+
+    private void writeEncoded(int b) throws IOException {
+        reserve(3);
+        mBuffer[mBufferLength++] = '=';
+        mBuffer[mBufferLength++] = HEX[b >> 4];
+        mBuffer[mBufferLength++] = HEX[b & 0xf];
+        mLinePosition += 3;
+    }
+
+    /**
+     * Inserts a soft line break if the next token does not fit on the line, leaving room for
+     * the '=' of the soft line break
+     */
+    private void reserve(int tokenLength) throws IOException {
+        if (mBufferLength > mBuffer.length - 8) {
+            flushBuffer();
+        }
+        if (mLinePosition + tokenLength > MAX_LINE_LENGTH - 1) {
+            mBuffer[mBufferLength++] = '=';
+            mBuffer[mBufferLength++] = '\r';
+            mBuffer[mBufferLength++] = '\n';
+            mLinePosition = 0;
+        }
+    }
+
+    private void hardLineBreak() throws IOException {
+        if (mBufferLength > mBuffer.length - 8) {
+            flushBuffer();
+        }
+        mBuffer[mBufferLength++] = '\r';
+        mBuffer[mBufferLength++] = '\n';
+        mLinePosition = 0;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferLength > 0) {
+            out.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes pending data without closing the underlying stream. Nothing may be written
+     * afterwards.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        if (mPendingCr) {
+            mPendingCr = false;
+            writePendingWhitespace(false);
+            writeEncoded('\r');
+        }
+        // whitespace at the end of the data is at the end of a line as well
+        writePendingWhitespace(true);
+        flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
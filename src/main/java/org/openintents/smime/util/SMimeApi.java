@@ -5,18 +5,36 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.util.Log;
 
 import org.openintents.smime.ISMimeService;
 import org.openintents.smime.SmimeError;
+import org.openintents.smime.SmimeSignatureResult;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class SMimeApi {
     public static final String TAG = "SMIME API";
@@ -155,6 +173,27 @@ public class SMimeApi {
      *
      */
     public static final String ACTION_GET_CERTIFICATE = "org.openintents.smime.action.GET_CERTIFICATE";
+    /**
+     * Returns a Bloom filter over all email addresses the provider has certificates for,
+     * see SMimeRecipientFilter for the format. Clients use it to answer opportunistic encryption
+     * requests locally when encryption is definitely not possible.
+     * <p/>
+     * returned extras:
+     * byte[]      RESULT_RECIPIENT_FILTER
+     * long        RESULT_RECIPIENT_FILTER_VERSION (changes whenever certificates are added or
+     * removed, providers should also return it with the results of all other actions)
+     */
+    public static final String ACTION_GET_RECIPIENT_FILTER = "org.openintents.smime.action.GET_RECIPIENT_FILTER";
+    /**
+     * Low-priority hint that the given certificates will be needed soon, e.g., while the user
+     * is composing a message. The provider can parse and unlock them ahead of the actual
+     * ACTION_SIGN_AND_ENCRYPT. Providers may ignore it, the result carries no data.
+     * <p/>
+     * optional extras:
+     * String[]      EXTRA_USER_IDS              (=emails of recipients)
+     * long          EXTRA_SIGN_CERTIFICATE_ID   (certificate id of signing certificate)
+     */
+    public static final String ACTION_PREFETCH = "org.openintents.smime.action.PREFETCH";
 
     /* Intent extras */
     public static final String EXTRA_API_VERSION = "api_version";
@@ -170,6 +209,7 @@ public class SMimeApi {
     public static final String EXTRA_ORIGINAL_FILENAME = "original_filename";
     public static final String EXTRA_ENABLE_COMPRESSION = "enable_compression";
     public static final String EXTRA_ENCRYPT_OPPORTUNISTIC = "opportunistic";
+    public static final String EXTRA_REQUEST_ASCII_ARMOR = "ascii_armor";
 
     // GET_SIGN_CERTIFICATE_ID
     public static final String EXTRA_USER_ID = "user_id";
@@ -178,6 +218,10 @@ public class SMimeApi {
     public static final String EXTRA_CERTIFICATE_ID = "certificate_id";
     public static final String RESULT_CERTIFICATE_IDS = "key_ids";
 
+    // GET_RECIPIENT_FILTER
+    public static final String RESULT_RECIPIENT_FILTER = "recipient_filter";
+    public static final String RESULT_RECIPIENT_FILTER_VERSION = "recipient_filter_version";
+
     /* Service Intent returns */
     public static final String RESULT_CODE = "result_code";
 
@@ -275,15 +319,237 @@ public class SMimeApi {
         return intent;
     }
 
+    /**
+     * Maximum time requests wait for a reconnecting service, see
+     * {@link #SMimeApi(Context, SMimeServiceConnection)}
+     */
+    public static final long SERVICE_TIMEOUT = 30 * 1000;
+
     ISMimeService mService;
+    SMimeServiceConnection mServiceConnection;
     Context mContext;
     final AtomicInteger mPipeIdGen = new AtomicInteger();
+    SMimeEncryptionCache mEncryptionCache;
+    SMimeDecryptionCache mDecryptionCache;
+    SMimeSingleFlight mSingleFlight;
+    SMimeScheduler mScheduler;
+    SMimeConcurrencyLimiter mConcurrencyLimiter;
+    SMimeEmailIndex mEmailIndex;
+    volatile SMimeRecipientFilter mRecipientFilter;
+    volatile long mRecipientFilterVersion;
+    volatile boolean mRecipientFilterRequested;
+    final AtomicReference<Intent> mPendingPrefetch = new AtomicReference<>();
+
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(1, 1,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
     public SMimeApi(Context context, ISMimeService service) {
         this.mContext = context;
         this.mService = service;
     }
 
+    /**
+     * Always uses the current service of the connection. Requests issued while it is
+     * (re)connecting wait up to {@link #SERVICE_TIMEOUT} for it instead of failing.
+     */
+    public SMimeApi(Context context, SMimeServiceConnection serviceConnection) {
+        this.mContext = context;
+        this.mServiceConnection = serviceConnection;
+        this.mService = serviceConnection.getService();
+    }
+
+    private ISMimeService getService() throws IOException {
+        if (mServiceConnection == null) {
+            return mService;
+        }
+        ISMimeService service = mServiceConnection.awaitService(SERVICE_TIMEOUT);
+        if (service == null) {
+            throw new IOException("Service not bound within " + SERVICE_TIMEOUT + "ms");
+        }
+        mService = service;
+        return service;
+    }
+
+    /**
+     * Enables reuse of encrypted output for identical plaintext, recipients and options
+     * (see {@link SMimeEncryptionCache}), null disables it.
+     */
+    public void setEncryptionCache(SMimeEncryptionCache encryptionCache) {
+        this.mEncryptionCache = encryptionCache;
+    }
+
+    /**
+     * Enables reuse of decrypted output for identical ciphertext
+     * (see {@link SMimeDecryptionCache}), null disables it.
+     */
+    public void setDecryptionCache(SMimeDecryptionCache decryptionCache) {
+        this.mDecryptionCache = decryptionCache;
+    }
+
+    /**
+     * Enables coalescing of identical concurrent requests in
+     * {@link #executeApiCoalesced(Intent, String, InputStream, OutputStream)}, null disables it.
+     * The same instance can be shared by all SMimeApi objects of one provider.
+     */
+    public void setSingleFlight(SMimeSingleFlight singleFlight) {
+        this.mSingleFlight = singleFlight;
+    }
+
+    /**
+     * Runs {@link #executeApiAsync(Intent, InputStream, OutputStream, ISMimeCallback, int)} and
+     * prefetches through the given scheduler, null uses AsyncTask without priorities.
+     */
+    public void setScheduler(SMimeScheduler scheduler) {
+        this.mScheduler = scheduler;
+    }
+
+    /**
+     * Limits concurrent calls to the provider adaptively (see {@link SMimeConcurrencyLimiter}),
+     * null disables it. Rejected calls return a CLIENT_SIDE_OVERLOADED error. The same instance
+     * should be shared by all SMimeApi objects of one provider.
+     */
+    public void setConcurrencyLimiter(SMimeConcurrencyLimiter concurrencyLimiter) {
+        this.mConcurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Adds the signers of all signature results with a confirmed certificate to the given index,
+     * null disables it. The index does not change which certificates requests encrypt to.
+     */
+    public void setEmailIndex(SMimeEmailIndex emailIndex) {
+        this.mEmailIndex = emailIndex;
+    }
+
+    /**
+     * Fetches the recipient filter of the provider (see ACTION_GET_RECIPIENT_FILTER). Afterwards,
+     * opportunistic encryption requests with EXTRA_USER_IDS fail locally with
+     * OPPORTUNISTIC_MISSING_KEYS if the filter rules out one of the recipients.
+     * <p/>
+     * The filter is dropped as soon as a result of the provider carries another
+     * RESULT_RECIPIENT_FILTER_VERSION, or on {@link #invalidateRecipientFilter()}. It is then
+     * fetched again on the next {@link #prefetch(String[], long)}.
+     *
+     * @return false if the provider does not support recipient filters
+     */
+    public boolean syncRecipientFilter() {
+        mRecipientFilterRequested = true;
+        Intent result = executeApi(new Intent(ACTION_GET_RECIPIENT_FILTER), (InputStream) null, null);
+        SMimeRecipientFilter filter = null;
+        if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) == RESULT_CODE_SUCCESS) {
+            try {
+                filter = SMimeRecipientFilter.fromByteArray(
+                        result.getByteArrayExtra(RESULT_RECIPIENT_FILTER));
+            } catch (IllegalArgumentException e) {
+                Log.e(SMimeApi.TAG, "Provider returned unusable recipient filter", e);
+            }
+        }
+        mRecipientFilterVersion = result.getLongExtra(RESULT_RECIPIENT_FILTER_VERSION, 0);
+        mRecipientFilter = filter;
+        return filter != null;
+    }
+
+    /**
+     * Drops the recipient filter, e.g., after certificates have been imported through the UI of
+     * the provider. It is fetched again on the next {@link #prefetch(String[], long)}.
+     */
+    public void invalidateRecipientFilter() {
+        mRecipientFilter = null;
+        mRecipientFilterRequested = false;
+    }
+
+    public SMimeRecipientFilter getRecipientFilter() {
+        return mRecipientFilter;
+    }
+
+    /**
+     * Returns an OPPORTUNISTIC_MISSING_KEYS error if the request is an opportunistic encryption
+     * which the recipient filter rules out, null if the provider needs to be asked.
+     */
+    private Intent checkRecipientFilter(Intent data) {
+        SMimeRecipientFilter filter = mRecipientFilter;
+        if (filter == null || !data.getBooleanExtra(EXTRA_ENCRYPT_OPPORTUNISTIC, false)) {
+            return null;
+        }
+        String action = data.getAction();
+        if (!ACTION_ENCRYPT.equals(action) && !ACTION_SIGN_AND_ENCRYPT.equals(action)) {
+            return null;
+        }
+        String[] userIds = data.getStringArrayExtra(EXTRA_USER_IDS);
+        if (userIds == null || filter.mightContainAll(userIds)) {
+            return null;
+        }
+
+        Intent result = new Intent();
+        result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
+        result.putExtra(RESULT_ERROR, new SmimeError(SmimeError.OPPORTUNISTIC_MISSING_KEYS,
+                "missing certificates in opportunistic mode"));
+        return result;
+    }
+
+    /**
+     * Drops the recipient filter if the result shows that the certificates of the provider have
+     * changed since it was fetched
+     */
+    private void checkRecipientFilterVersion(Intent result) {
+        if (mRecipientFilter != null && result.hasExtra(RESULT_RECIPIENT_FILTER_VERSION)
+                && result.getLongExtra(RESULT_RECIPIENT_FILTER_VERSION, 0)
+                != mRecipientFilterVersion) {
+            Log.d(SMimeApi.TAG, "recipient filter outdated, dropping it");
+            invalidateRecipientFilter();
+        }
+    }
+
+    /**
+     * Warms caches for an upcoming operation, e.g., as soon as the user enters recipients.
+     * Fetches the recipient filter if it has not been requested yet and sends ACTION_PREFETCH
+     * to the provider on a low-priority background thread. Returns immediately, repeated calls
+     * while a prefetch is pending only send the most recent one.
+     *
+     * @param userIds           emails of the recipients, may be null
+     * @param signCertificateId certificate id of the signing certificate, 0 if none
+     */
+    public void prefetch(String[] userIds, long signCertificateId) {
+        Intent data = new Intent(ACTION_PREFETCH);
+        if (userIds != null) {
+            data.putExtra(EXTRA_USER_IDS, userIds);
+        }
+        if (signCertificateId != 0) {
+            data.putExtra(EXTRA_SIGN_CERTIFICATE_ID, signCertificateId);
+        }
+
+        if (mPendingPrefetch.getAndSet(data) == null) {
+            Runnable prefetch = new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                    if (!mRecipientFilterRequested) {
+                        syncRecipientFilter();
+                    }
+
+                    Intent pending = mPendingPrefetch.getAndSet(null);
+                    if (pending != null) {
+                        Intent result = executeApi(pending, (InputStream) null, null);
+                        if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) != RESULT_CODE_SUCCESS) {
+                            Log.d(SMimeApi.TAG, "prefetch hint not handled by provider");
+                        }
+                    }
+                }
+            };
+
+            SMimeScheduler scheduler = mScheduler;
+            if (scheduler != null) {
+                scheduler.execute(prefetch, SMimeScheduler.PRIORITY_PREFETCH);
+            } else {
+                PREFETCH_EXECUTOR.execute(prefetch);
+            }
+        }
+    }
+
     public interface ISMimeCallback {
         void onReturn(final Intent result);
     }
@@ -312,8 +578,37 @@ public class SMimeApi {
 
     }
 
-    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     public void executeApiAsync(Intent data, InputStream is, OutputStream os, ISMimeCallback callback) {
+        executeApiAsync(data, is, os, callback, SMimeScheduler.PRIORITY_INTERACTIVE);
+    }
+
+    /**
+     * Like {@link #executeApiAsync(Intent, InputStream, OutputStream, ISMimeCallback)}, the
+     * priority is only used if a scheduler has been set.
+     *
+     * @param priority one of the SMimeScheduler.PRIORITY_* constants
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void executeApiAsync(final Intent data, final InputStream is, final OutputStream os,
+                                final ISMimeCallback callback, int priority) {
+        SMimeScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Intent result = executeApi(data, is, os);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onReturn(result);
+                        }
+                    });
+                }
+            }, priority);
+            return;
+        }
+
         SMimeAsyncTask task = new SMimeAsyncTask(data, is, os, callback);
 
         // don't serialize async tasks!
@@ -327,13 +622,32 @@ public class SMimeApi {
 
 
     public Intent executeApi(Intent data, InputStream is, OutputStream os) {
+        Intent filtered = checkRecipientFilter(data);
+        if (filtered != null) {
+            closeQuietly(is);
+            closeQuietly(os);
+            return filtered;
+        }
+
+        SMimeEncryptionCache encryptionCache = mEncryptionCache;
+        if (encryptionCache != null && is != null && os != null) {
+            if (SMimeEncryptionCache.isCacheable(data)) {
+                return executeApiWithEncryptionCache(encryptionCache, data, is, os);
+            }
+        }
+        SMimeDecryptionCache decryptionCache = mDecryptionCache;
+        if (decryptionCache != null && is != null && os != null
+                && SMimeDecryptionCache.isCacheable(data)) {
+            return executeApiWithDecryptionCache(decryptionCache, data, is, os);
+        }
+
         ParcelFileDescriptor input = null;
         try {
             if (is != null) {
                 input = ParcelFileDescriptorUtil.pipeFrom(is);
             }
 
-            return executeApi(data, input, os);
+            return executeApiLimited(data, input, os);
         } catch (Exception e) {
             Log.e(SMimeApi.TAG, "Exception in executeApi call", e);
             Intent result = new Intent();
@@ -352,6 +666,191 @@ public class SMimeApi {
         }
     }
 
+    /**
+     * Like {@link #executeApi(Intent, InputStream, OutputStream)}, but concurrent requests with the
+     * same action and fingerprint share a single provider call (see {@link SMimeSingleFlight}).
+     *
+     * @param fingerprint identifies input and extras of the request, e.g., a message id for
+     *                    ACTION_DECRYPT_VERIFY. If null, it is derived from the extras, requests with
+     *                    an InputStream are then not coalesced.
+     */
+    public Intent executeApiCoalesced(final Intent data, String fingerprint, InputStream is, OutputStream os) {
+        SMimeSingleFlight singleFlight = mSingleFlight;
+        if (singleFlight == null || (fingerprint == null && is != null)) {
+            return executeApi(data, is, os);
+        }
+        if (fingerprint == null) {
+            fingerprint = SMimeSingleFlight.fingerprintOf(data);
+            if (fingerprint == null) {
+                return executeApi(data, is, os);
+            }
+        }
+
+        String key = data.getAction() + "|" + (os != null) + "|" + fingerprint;
+        return singleFlight.execute(key, is, os, new SMimeSingleFlight.Operation() {
+            @Override
+            public Intent execute(InputStream is, OutputStream os) {
+                return executeApi(data, is, os);
+            }
+        });
+    }
+
+    private Intent executeApiWithEncryptionCache(SMimeEncryptionCache encryptionCache, Intent data,
+                                                 InputStream is, OutputStream os) {
+        ParcelFileDescriptor input = null;
+        SMimeEncryptionCache.Entry entry = null;
+        try {
+            // keep plaintext in memory while computing its digest, it is needed again on cache miss
+            MessageDigest digest = SMimeEncryptionCache.createContentDigest();
+            ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+            if (!readWithDigest(is, plaintext, digest, encryptionCache.getMaxPlaintextSize())) {
+                // too large to keep, send it without caching
+                input = ParcelFileDescriptorUtil.pipeFrom(new SequenceInputStream(
+                        new ByteArrayInputStream(plaintext.toByteArray()), is));
+                return executeApiLimited(data, input, os);
+            }
+            String key = SMimeEncryptionCache.createKey(data, digest.digest());
+
+            Intent cached;
+            try {
+                cached = encryptionCache.get(key, os);
+            } catch (IOException e) {
+                os.close();
+                throw e;
+            }
+            if (cached != null) {
+                os.close();
+                Log.d(SMimeApi.TAG, "encrypted output taken from cache");
+                return cached;
+            }
+
+            entry = encryptionCache.put(key);
+            input = ParcelFileDescriptorUtil.pipeFrom(new ByteArrayInputStream(plaintext.toByteArray()));
+            TeeOutputStream tee = new TeeOutputStream(os, entry.getOutputStream());
+            Intent result = executeApiLimited(data, input, tee);
+            // the transfer thread swallows write errors, only cache output which arrived completely
+            if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) == RESULT_CODE_SUCCESS
+                    && tee.isComplete()) {
+                try {
+                    entry.commit(result);
+                } catch (IOException | RuntimeException e) {
+                    // the output has been delivered, only caching it failed
+                    Log.e(SMimeApi.TAG, "Could not commit cache entry", e);
+                }
+            } else {
+                if (tee.getException() != null) {
+                    Log.e(SMimeApi.TAG, "Encrypted output incomplete, not cached", tee.getException());
+                }
+                entry.abort();
+            }
+            entry = null;
+            return result;
+        } catch (Exception e) {
+            Log.e(SMimeApi.TAG, "Exception in executeApi call", e);
+            Intent result = new Intent();
+            result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
+            result.putExtra(RESULT_ERROR,
+                    new SmimeError(SmimeError.CLIENT_SIDE_ERROR, e.getMessage()));
+            return result;
+        } finally {
+            if (entry != null) {
+                entry.abort();
+            }
+            closeQuietly(input);
+        }
+    }
+
+    private Intent executeApiWithDecryptionCache(SMimeDecryptionCache decryptionCache, Intent data,
+                                                 InputStream is, OutputStream os) {
+        File spoolFile = null;
+        try {
+            // spool ciphertext to disk while computing its digest, it is needed again on cache miss
+            spoolFile = File.createTempFile("spool", ".tmp", mContext.getCacheDir());
+            String key = SMimeUtils.toHex(spoolWithDigest(is, spoolFile));
+
+            Intent cached;
+            try {
+                cached = decryptionCache.get(key, os);
+            } catch (IOException e) {
+                os.close();
+                throw e;
+            }
+            if (cached != null) {
+                os.close();
+                Log.d(SMimeApi.TAG, "decrypted output taken from cache");
+                return cached;
+            }
+
+            SMimeDecryptionCache.Writer writer = decryptionCache.put(key);
+            ParcelFileDescriptor input = ParcelFileDescriptorUtil.pipeFrom(new FileInputStream(spoolFile));
+            TeeOutputStream tee = new TeeOutputStream(os, writer);
+            Intent result = executeApiLimited(data, input, tee);
+            if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) == RESULT_CODE_SUCCESS
+                    && tee.isComplete()) {
+                writer.commit(result);
+            }
+            return result;
+        } catch (Exception e) {
+            Log.e(SMimeApi.TAG, "Exception in executeApi call", e);
+            Intent result = new Intent();
+            result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
+            result.putExtra(RESULT_ERROR,
+                    new SmimeError(SmimeError.CLIENT_SIDE_ERROR, e.getMessage()));
+            return result;
+        } finally {
+            if (spoolFile != null) {
+                spoolFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies is to out until it ends or limit bytes have been copied. is is only closed if it
+     * ended, otherwise the caller has to read the rest.
+     *
+     * @return false if is has more than limit bytes
+     */
+    private static boolean readWithDigest(InputStream is, OutputStream out, MessageDigest digest,
+                                          int limit) throws IOException {
+        byte[] buffer = new byte[4096];
+        int total = 0;
+        while (total < limit) {
+            int read = is.read(buffer, 0, Math.min(buffer.length, limit - total));
+            if (read == -1) {
+                is.close();
+                return true;
+            }
+            digest.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+            total += read;
+        }
+        // exactly limit bytes are fine as well
+        int next = is.read();
+        if (next == -1) {
+            is.close();
+            return true;
+        }
+        out.write(next);
+        return false;
+    }
+
+    /**
+     * Copies is to file and closes it
+     *
+     * @return SHA-256 digest of the copied data
+     */
+    private static byte[] spoolWithDigest(InputStream is, File file) throws IOException {
+        MessageDigest digest = SMimeEncryptionCache.createContentDigest();
+        OutputStream spool = new FileOutputStream(file);
+        try {
+            ParcelFileDescriptorUtil.copy(new DigestInputStream(is, digest), spool);
+        } finally {
+            spool.close();
+            is.close();
+        }
+        return digest.digest();
+    }
+
     /**
      * InputStream and OutputStreams are always closed after operating on them!
      */
@@ -382,6 +881,55 @@ public class SMimeApi {
      * @return
      */
     public Intent executeApi(Intent data, ParcelFileDescriptor input, OutputStream os) {
+        Intent filtered = checkRecipientFilter(data);
+        if (filtered != null) {
+            closeQuietly(input);
+            closeQuietly(os);
+            return filtered;
+        }
+        return executeApiLimited(data, input, os);
+    }
+
+    /**
+     * Like {@link #executeApi(Intent, ParcelFileDescriptor, OutputStream)}, for requests which
+     * already passed {@link #checkRecipientFilter(Intent)}
+     */
+    private Intent executeApiLimited(Intent data, ParcelFileDescriptor input, OutputStream os) {
+        SMimeConcurrencyLimiter limiter = mConcurrencyLimiter;
+        if (limiter == null) {
+            return executeApiUnlimited(data, input, os);
+        }
+
+        boolean acquired;
+        try {
+            acquired = limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            closeQuietly(input);
+            closeQuietly(os);
+            Intent result = new Intent();
+            result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
+            result.putExtra(RESULT_ERROR, new SmimeError(SmimeError.CLIENT_SIDE_OVERLOADED,
+                    "too many concurrent requests: " + limiter));
+            return result;
+        }
+
+        long start = System.nanoTime();
+        Intent result = null;
+        try {
+            result = executeApiUnlimited(data, input, os);
+            return result;
+        } finally {
+            // errors of the provider are answers as well, only client side failures count
+            boolean success = result != null && !result.hasExtra(EXTRA_RESULT_ERROR);
+            limiter.release(System.nanoTime() - start, success);
+        }
+    }
+
+    private Intent executeApiUnlimited(Intent data, ParcelFileDescriptor input, OutputStream os) {
         ParcelFileDescriptor output = null;
 
         try {
@@ -392,21 +940,44 @@ public class SMimeApi {
 
             Thread pumpThread =null;
             int outputPipeId = 0;
+            ISMimeService service = getService();
 
             if (os != null) {
                 outputPipeId = mPipeIdGen.incrementAndGet();
-                output = mService.createOutputPipe(outputPipeId);
+                output = service.createOutputPipe(outputPipeId);
                 pumpThread = ParcelFileDescriptorUtil.pipeTo(os, output);
             }
 
             // blocks until result is ready
-            result = mService.execute(data, input, outputPipeId);
+            try {
+                result = service.execute(data, input, outputPipeId);
+            } catch (DeadObjectException e) {
+                if (mServiceConnection == null || input != null || os != null) {
+                    throw e;
+                }
+                // provider died, without streams it is safe to retry once it is reconnected
+                Log.d(SMimeApi.TAG, "provider died, retrying after reconnect");
+                result = getService().execute(data, null, 0);
+            }
+
+            // wait for ALL data being pumped from remote side
+            if (pumpThread != null) {
+                pumpThread.join();
+            }
 
             // set class loader to current context to allow unparcelling
             // of SMimeError and SMimeSignatureResult
             // http://stackoverflow.com/a/3806769
             //result.setExtrasClassLoader(mContext.getClassLoader());
             Log.d(SMimeApi.TAG, "service result: " + result);
+            checkRecipientFilterVersion(result);
+            SMimeEmailIndex emailIndex = mEmailIndex;
+            if (emailIndex != null && result.hasExtra(RESULT_SIGNATURE)) {
+                SmimeSignatureResult signatureResult = result.getParcelableExtra(RESULT_SIGNATURE);
+                if (signatureResult != null) {
+                    emailIndex.add(signatureResult);
+                }
+            }
             return result;
         } catch (Exception e) {
             Log.e(SMimeApi.TAG, "Exception in executeApi call", e);
@@ -434,6 +1005,16 @@ public class SMimeApi {
         }
     }
 
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Log.e(SMimeApi.TAG, "IOException when closing stream", e);
+            }
+        }
+    }
+
     public interface SMimeDataSource {
         void writeTo(OutputStream os) throws IOException;
     }
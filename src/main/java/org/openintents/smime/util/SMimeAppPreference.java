@@ -31,7 +31,6 @@ import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
-import android.widget.ListAdapter;
 import android.widget.TextView;
 
 import org.openintents.smime.R;
@@ -61,8 +60,24 @@ public class SMimeAppPreference extends DialogPreference {
 
     private String mSelectedPackage;
 
+    private SMimeProviderRegistry mProviderRegistry;
+    private ArrayAdapter<SmimeProviderEntry> mAdapter;
+
+    private final SMimeProviderRegistry.OnProviderDetailsLoaded mOnProviderDetailsLoaded =
+            new SMimeProviderRegistry.OnProviderDetailsLoaded() {
+                @Override
+                public void onProviderDetailsLoaded(List<SMimeProviderRegistry.SmimeProvider> providers) {
+                    populateAppList();
+                    if (mAdapter != null) {
+                        mAdapter.notifyDataSetChanged();
+                    }
+                    updateSummary(mSelectedPackage);
+                }
+            };
+
     public SMimeAppPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
+        mProviderRegistry = SMimeProviderRegistry.getInstance(context);
         populateAppList();
     }
 
@@ -84,11 +99,11 @@ public class SMimeAppPreference extends DialogPreference {
     @Override
     protected void onPrepareDialogBuilder(Builder builder) {
 
-        // do again, maybe an app has now been installed
+        // do again, maybe an app has now been installed (cheap, discovery is cached)
         populateAppList();
 
         // Init ArrayAdapter with OpenPGP Providers
-        ListAdapter adapter = new ArrayAdapter<SmimeProviderEntry>(getContext(),
+        mAdapter = new ArrayAdapter<SmimeProviderEntry>(getContext(),
                 android.R.layout.select_dialog_singlechoice, android.R.id.text1, mList) {
             public View getView(int position, View convertView, ViewGroup parent) {
                 // User super class to create the View
@@ -107,7 +122,7 @@ public class SMimeAppPreference extends DialogPreference {
             }
         };
 
-        builder.setSingleChoiceItems(adapter, getIndexOfProviderList(mSelectedPackage),
+        builder.setSingleChoiceItems(mAdapter, getIndexOfProviderList(mSelectedPackage),
                 new DialogInterface.OnClickListener() {
 
                     @Override
@@ -263,27 +278,23 @@ public class SMimeAppPreference extends DialogPreference {
 
         // search for SMIME providers...
         ArrayList<SmimeProviderEntry> providerList = new ArrayList<>();
-        Intent intent = new Intent(SMimeApi.SERVICE_INTENT);
-        List<ResolveInfo> resInfo = getContext().getPackageManager().queryIntentServices(intent, 0);
-        if (resInfo != null && !resInfo.isEmpty()) {
-            for (ResolveInfo resolveInfo : resInfo) {
-                if (resolveInfo.serviceInfo == null)
-                    continue;
-
-                String packageName = resolveInfo.serviceInfo.packageName;
-                String simpleName = String.valueOf(resolveInfo.serviceInfo.loadLabel(getContext()
-                        .getPackageManager()));
-                Drawable icon = resolveInfo.serviceInfo.loadIcon(getContext().getPackageManager());
-
-                if (!PROVIDER_BLACKLIST.contains(packageName)) {
-                    providerList.add(new SmimeProviderEntry(packageName, simpleName, icon));
-                }
+        boolean detailsLoaded = true;
+        for (SMimeProviderRegistry.SmimeProvider provider : mProviderRegistry.getProviders()) {
+            if (!PROVIDER_BLACKLIST.contains(provider.packageName)) {
+                providerList.add(new SmimeProviderEntry(provider.packageName,
+                        String.valueOf(provider.getLabel()), provider.getIcon()));
+                detailsLoaded &= provider.isDetailsLoaded();
             }
         }
 
+        if (!detailsLoaded) {
+            // labels and icons are loaded in the background, populate again afterwards
+            mProviderRegistry.loadProviderDetails(mOnProviderDetailsLoaded);
+        }
+
         if (providerList.isEmpty()) {
             // add install links if provider list is empty
-            resInfo = getContext().getPackageManager().queryIntentActivities
+            List<ResolveInfo> resInfo = getContext().getPackageManager().queryIntentActivities
                     (MARKET_INTENT, 0);
             for (ResolveInfo resolveInfo : resInfo) {
                 Intent marketIntent = new Intent(MARKET_INTENT);
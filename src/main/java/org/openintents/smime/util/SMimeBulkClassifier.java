@@ -0,0 +1,156 @@
+package org.openintents.smime.util;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classifies many messages in parallel with {@link SMimeContentClassifier}, e.g., all messages
+ * of a folder before deciding which ones need ACTION_DECRYPT_VERIFY.
+ * <p/>
+ * The index range is split into chunks which worker threads, one per core, take from a shared
+ * counter, so fast and slow messages even out. ForkJoinPool is not available before API 21.
+ * Only the classification prefix of each message is read. The result holds one CLASS_* constant
+ * per message, or {@link #CLASS_UNREADABLE}.
+ * <p/>
+ * The methods of this class block, do not call them on the main thread!
+ */
+public class SMimeBulkClassifier {
+    public static final byte CLASS_UNREADABLE = -1;
+
+    // chunks per thread, more chunks balance better but cost more coordination
+    private static final int CHUNKS_PER_THREAD = 8;
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(THREAD_COUNT,
+            THREAD_COUNT, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private interface Source {
+        SMimeContentClassifier.Result classify(int index) throws IOException;
+    }
+
+    public static byte[] classifyFiles(final List<File> files) throws InterruptedException {
+        return classify(files.size(), new Source() {
+            @Override
+            public SMimeContentClassifier.Result classify(int index) throws IOException {
+                InputStream is = new FileInputStream(files.get(index));
+                try {
+                    return SMimeContentClassifier.classify(is);
+                } finally {
+                    is.close();
+                }
+            }
+        });
+    }
+
+    public static byte[] classifyBuffers(final List<byte[]> buffers) throws InterruptedException {
+        return classify(buffers.size(), new Source() {
+            @Override
+            public SMimeContentClassifier.Result classify(int index) throws IOException {
+                return SMimeContentClassifier.classify(
+                        new ByteArrayInputStream(buffers.get(index)));
+            }
+        });
+    }
+
+    /**
+     * @param messages e.g., slices of a memory-mapped mailbox file
+     */
+    public static byte[] classifyByteBuffers(final List<ByteBuffer> messages)
+            throws InterruptedException {
+        return classify(messages.size(), new Source() {
+            @Override
+            public SMimeContentClassifier.Result classify(int index) throws IOException {
+                return SMimeContentClassifier.classify(
+                        new ByteBufferInputStream(messages.get(index).duplicate()));
+            }
+        });
+    }
+
+    private static byte[] classify(final int count, final Source source)
+            throws InterruptedException {
+        final byte[] classes = new byte[count];
+        final int chunkSize = Math.max(1, count / (THREAD_COUNT * CHUNKS_PER_THREAD));
+        final AtomicInteger nextChunk = new AtomicInteger();
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int from;
+                while ((from = nextChunk.getAndAdd(chunkSize)) < count) {
+                    int to = Math.min(from + chunkSize, count);
+                    for (int i = from; i < to; i++) {
+                        try {
+                            classes[i] = source.classify(i).type;
+                        } catch (IOException e) {
+                            Log.e(SMimeApi.TAG, "Could not classify message " + i, e);
+                            classes[i] = CLASS_UNREADABLE;
+                        }
+                    }
+                }
+            }
+        };
+
+        int threads = Math.min(THREAD_COUNT, (count + chunkSize - 1) / chunkSize);
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        // the calling thread works as well
+        for (int i = 1; i < threads; i++) {
+            futures.add(EXECUTOR.submit(worker));
+        }
+        worker.run();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+        return classes;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+    }
+}
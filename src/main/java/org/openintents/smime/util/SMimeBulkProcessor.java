@@ -0,0 +1,161 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+import android.util.Log;
+
+import org.openintents.smime.SmimeError;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipelined processing of many messages, e.g., decrypting or verifying a folder during sync.
+ * <p/>
+ * Up to window operations are in flight at the same time, so the input of the next messages is
+ * already streamed to the provider while it is still busy with the current one. Results are
+ * delivered in the order of the sources on the calling thread. A slot is only refilled after
+ * its result has been delivered, so a slow consumer throttles reading of further sources.
+ * <p/>
+ * {@link #process(Iterator, BulkCallback)} blocks, do not call it on the main thread! A processor
+ * can be reused for several runs, but only one at a time.
+ */
+public class SMimeBulkProcessor {
+    public static final int DEFAULT_WINDOW = 4;
+
+    public interface MessageSource {
+        Intent getData();
+
+        /**
+         * @return input of the operation, null if there is none
+         */
+        SMimeApi.SMimeDataSource getInput();
+
+        /**
+         * Called when the operation starts, the stream is closed afterwards
+         *
+         * @return output of the operation, null if there is none
+         */
+        OutputStream openOutput() throws IOException;
+    }
+
+    public interface BulkCallback<S extends MessageSource> {
+        void onResult(S source, Intent result);
+    }
+
+    private final SMimeApi mApi;
+    private final int mWindow;
+    private final ThreadPoolExecutor mExecutor;
+    private volatile boolean mCancelled;
+
+    public SMimeBulkProcessor(SMimeApi api) {
+        this(api, DEFAULT_WINDOW);
+    }
+
+    public SMimeBulkProcessor(SMimeApi api, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        this.mApi = api;
+        this.mWindow = window;
+        mExecutor = new ThreadPoolExecutor(window, window,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops reading further sources in the current run, or in the next one if called before it
+     * starts. Operations in flight are completed and delivered.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Processes all sources and delivers one result per source, in order. If the calling thread
+     * is interrupted, the operations in flight are cancelled, delivered with an error and no
+     * further sources are read; the interrupt status stays set.
+     *
+     * @return number of processed sources
+     */
+    public <S extends MessageSource> int process(Iterator<S> sources, BulkCallback<S> callback) {
+        ArrayDeque<Pending<S>> inFlight = new ArrayDeque<>();
+        int processed = 0;
+        try {
+            while (true) {
+                while (!mCancelled && inFlight.size() < mWindow && sources.hasNext()) {
+                    final S source = sources.next();
+                    Future<Intent> future = mExecutor.submit(new Callable<Intent>() {
+                        @Override
+                        public Intent call() throws Exception {
+                            return mApi.executeApi(source.getData(), source.getInput(),
+                                    source.openOutput());
+                        }
+                    });
+                    inFlight.addLast(new Pending<>(source, future));
+                }
+
+                Pending<S> head = inFlight.pollFirst();
+                if (head == null) {
+                    return processed;
+                }
+                Intent result;
+                try {
+                    result = getResult(head.future);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // nobody waits for them anymore, stop them instead of letting them run
+                    // unobserved
+                    inFlight.addFirst(head);
+                    for (Pending<S> pending : inFlight) {
+                        pending.future.cancel(true);
+                    }
+                    for (Pending<S> pending : inFlight) {
+                        callback.onResult(pending.source, createErrorResult("interrupted"));
+                        processed++;
+                    }
+                    return processed;
+                }
+                callback.onResult(head.source, result);
+                processed++;
+            }
+        } finally {
+            // a cancel() during this run must not carry over to the next one
+            mCancelled = false;
+        }
+    }
+
+    private static Intent getResult(Future<Intent> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.e(SMimeApi.TAG, "Exception in bulk operation", e.getCause());
+            return createErrorResult(e.getCause().getMessage());
+        }
+    }
+
+    private static Intent createErrorResult(String message) {
+        Intent result = new Intent();
+        result.putExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR);
+        result.putExtra(SMimeApi.RESULT_ERROR,
+                new SmimeError(SmimeError.CLIENT_SIDE_ERROR, message));
+        return result;
+    }
+
+    private static class Pending<S> {
+        final S source;
+        final Future<Intent> future;
+
+        Pending(S source, Future<Intent> future) {
+            this.source = source;
+            this.future = future;
+        }
+    }
+}
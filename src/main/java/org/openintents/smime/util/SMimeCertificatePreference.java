@@ -36,7 +36,6 @@ import org.openintents.smime.R;
 public class SMimeCertificatePreference extends Preference {
     private long mCertificateId;
     private String mSmimeProvider;
-    private SMimeServiceConnection mServiceConnection;
     private String mDefaultUserId;
 
     public static final int REQUEST_CODE_KEY_PREFERENCE = 9999;
@@ -72,44 +71,50 @@ public class SMimeCertificatePreference extends Preference {
 
     @Override
     protected void onClick() {
-        // bind to service
-        mServiceConnection = new SMimeServiceConnection(
-                getContext().getApplicationContext(),
-                mSmimeProvider,
-                new SMimeServiceConnection.OnBound() {
-                    @Override
-                    public void onBound(ISMimeService service) {
-
-                        getSignCertificateId(new Intent());
-                    }
-
-                    @Override
-                    public void onError(Exception e) {
-                        Log.e(SMimeApi.TAG, "exception on binding!", e);
-                    }
-                }
-        );
-        mServiceConnection.bindToService();
+        getSignCertificateId(new Intent());
     }
 
-    private void getSignCertificateId(Intent data) {
+    private void getSignCertificateId(final Intent data) {
         data.setAction(SMimeApi.ACTION_GET_SIGN_CERTIFICATE_ID);
         data.putExtra(SMimeApi.EXTRA_USER_ID, mDefaultUserId);
 
-        SMimeApi api = new SMimeApi(getContext(), mServiceConnection.getService());
-        api.executeApiAsync(data, null, null, new MyCallback(REQUEST_CODE_KEY_PREFERENCE));
+        // bind to service, shared with other users of this provider
+        final SMimeServiceConnectionRegistry.Handle handle =
+                SMimeServiceConnectionRegistry.getInstance(getContext()).acquire(mSmimeProvider);
+        handle.getConnection().runWhenBound(new SMimeServiceConnection.ServiceTask() {
+            @Override
+            public void run(ISMimeService service) {
+                SMimeApi api = new SMimeApi(getContext(), service);
+                api.executeApiAsync(data, null, null,
+                        new MyCallback(REQUEST_CODE_KEY_PREFERENCE, handle));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                // releases the handle
+                Intent result = new Intent();
+                result.putExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR);
+                result.putExtra(SMimeApi.RESULT_ERROR,
+                        new SmimeError(SmimeError.CLIENT_SIDE_ERROR, e.getMessage()));
+                new MyCallback(REQUEST_CODE_KEY_PREFERENCE, handle).onReturn(result);
+            }
+        });
     }
 
     //TODO: Rename Me
     private class MyCallback implements SMimeApi.ISMimeCallback {
         int requestCode;
+        SMimeServiceConnectionRegistry.Handle handle;
 
-        private MyCallback(int requestCode) {
+        private MyCallback(int requestCode, SMimeServiceConnectionRegistry.Handle handle) {
             this.requestCode = requestCode;
+            this.handle = handle;
         }
 
         @Override
         public void onReturn(Intent result) {
+            handle.release();
+
             switch (result.getIntExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR)) {
                 case SMimeApi.RESULT_CODE_SUCCESS: {
 
@@ -0,0 +1,152 @@
+package org.openintents.smime.util;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit for concurrent calls to a provider, see
+ * {@link SMimeApi#setConcurrencyLimiter(SMimeConcurrencyLimiter)}.
+ * <p/>
+ * The limit follows AIMD: it grows by one per limit's worth of fast calls while calls use up the
+ * limit, and shrinks by a factor whenever a call fails or takes longer than the tolerance times
+ * the minimum latency recently observed. The provider thus runs near the point where latency
+ * starts to climb. Calls exceeding the limit wait up to the queue timeout and are rejected
+ * afterwards. Latencies are compared as is, so the limiter works best for operations of similar
+ * size, e.g., certificate lookups or verifying typical messages.
+ */
+public class SMimeConcurrencyLimiter {
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    public static final double DEFAULT_TOLERANCE = 2.0;
+    public static final long DEFAULT_QUEUE_TIMEOUT = 10 * 1000;
+
+    private static final double BACKOFF_RATIO = 0.9;
+    // samples after which the minimum latency is re-measured, to follow changes of the provider
+    private static final int MIN_LATENCY_WINDOW = 500;
+    // calls faster than this are not compared by latency, e.g., answers from a cache
+    private static final long MIN_LATENCY_FLOOR = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int mMinLimit = 1;
+    private final int mMaxLimit;
+    private double mTolerance = DEFAULT_TOLERANCE;
+    private long mQueueTimeout = DEFAULT_QUEUE_TIMEOUT;
+
+    private double mLimit;
+    private int mInFlight;
+    private int mQueued;
+    private long mRejected;
+
+    private long mMinLatency = Long.MAX_VALUE;
+    private long mWindowMinLatency = Long.MAX_VALUE;
+    private int mWindowSamples;
+
+    public SMimeConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    public SMimeConcurrencyLimiter(int initialLimit, int maxLimit) {
+        this.mLimit = initialLimit;
+        this.mMaxLimit = maxLimit;
+    }
+
+    public synchronized void setTolerance(double tolerance) {
+        this.mTolerance = tolerance;
+    }
+
+    /**
+     * @param queueTimeout milliseconds a call waits for a free slot, 0 rejects immediately
+     */
+    public synchronized void setQueueTimeout(long queueTimeout) {
+        this.mQueueTimeout = queueTimeout;
+    }
+
+    /**
+     * Waits for a free slot. Every successful acquire must be followed by
+     * {@link #release(long, boolean)}.
+     *
+     * @return false if the call has been rejected
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        if (mInFlight < (int) mLimit) {
+            mInFlight++;
+            return true;
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + mQueueTimeout;
+        mQueued++;
+        try {
+            while (mInFlight >= (int) mLimit) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    mRejected++;
+                    return false;
+                }
+                wait(remaining);
+            }
+            mInFlight++;
+            return true;
+        } finally {
+            mQueued--;
+        }
+    }
+
+    /**
+     * @param latency nanoseconds the call took, measured with {@link System#nanoTime()}
+     * @param success false if the call failed on the client side, e.g., because the
+     *                provider died or a pipe broke
+     */
+    public synchronized void release(long latency, boolean success) {
+        boolean saturated = mInFlight >= (int) mLimit;
+        mInFlight--;
+
+        if (success) {
+            updateMinLatency(latency);
+        }
+
+        if (!success || latency > mTolerance * Math.max(mMinLatency, MIN_LATENCY_FLOOR)) {
+            mLimit = Math.max(mMinLimit, mLimit * BACKOFF_RATIO);
+        } else if (saturated) {
+            mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+        }
+        notifyAll();
+    }
+
+    private void updateMinLatency(long latency) {
+        mMinLatency = Math.min(mMinLatency, latency);
+        mWindowMinLatency = Math.min(mWindowMinLatency, latency);
+        if (++mWindowSamples >= MIN_LATENCY_WINDOW) {
+            mMinLatency = mWindowMinLatency;
+            mWindowMinLatency = Long.MAX_VALUE;
+            mWindowSamples = 0;
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * Number of calls currently waiting for a slot
+     */
+    public synchronized int getQueued() {
+        return mQueued;
+    }
+
+    /**
+     * Number of calls rejected since creation
+     */
+    public synchronized long getRejected() {
+        return mRejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "limit " + (int) mLimit + ", in flight " + mInFlight + ", queued " + mQueued
+                + ", rejected " + mRejected;
+    }
+}
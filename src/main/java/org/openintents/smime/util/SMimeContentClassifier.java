@@ -0,0 +1,409 @@
+package org.openintents.smime.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Detects S/MIME and PGP content in a single linear pass over a bounded prefix of a message,
+ * without regular expressions.
+ * <p/>
+ * S/MIME is recognized by the top-level Content-Type header: application/pkcs7-mime (also with
+ * the x- prefix), split by its smime-type parameter, and multipart/signed with a
+ * pkcs7-signature protocol. Input without a header block is treated as body. PGP armor is
+ * recognized by its header lines, which have to start at the beginning of a line.
+ * <p/>
+ * Offsets are byte offsets for streams and char offsets for CharSequences. If the prefix ends
+ * inside PGP armor, the class is reported with an end of -1; if the whole message ends there,
+ * the armor is incomplete and ignored.
+ */
+public class SMimeContentClassifier {
+    public static final int DEFAULT_PREFIX_LENGTH = 64 * 1024;
+
+    public static final byte CLASS_NONE = 0;
+    // application/pkcs7-mime with smime-type enveloped-data or without smime-type
+    public static final byte CLASS_SMIME_ENVELOPED = 1;
+    // application/pkcs7-mime with smime-type signed-data
+    public static final byte CLASS_SMIME_OPAQUE_SIGNED = 2;
+    // multipart/signed with protocol application/pkcs7-signature
+    public static final byte CLASS_SMIME_MULTIPART_SIGNED = 3;
+    public static final byte CLASS_PGP_MESSAGE = 4;
+    public static final byte CLASS_PGP_SIGNED_MESSAGE = 5;
+
+    private static final int MAX_LINE_LENGTH = 1000;
+    private static final int MAX_HEADER_LENGTH = 4096;
+
+    private static final String CONTENT_TYPE = "content-type";
+    private static final String PGP_MESSAGE_BEGIN = "-----BEGIN PGP MESSAGE-----";
+    private static final String PGP_MESSAGE_END = "-----END PGP MESSAGE-----";
+    private static final String PGP_SIGNED_MESSAGE_BEGIN = "-----BEGIN PGP SIGNED MESSAGE-----";
+    private static final String PGP_SIGNATURE_BEGIN = "-----BEGIN PGP SIGNATURE-----";
+    private static final String PGP_SIGNATURE_END = "-----END PGP SIGNATURE-----";
+
+    public static Result classify(InputStream is) throws IOException {
+        return classify(is, DEFAULT_PREFIX_LENGTH);
+    }
+
+    /**
+     * Reads at most prefixLength bytes, the stream is not closed
+     */
+    public static Result classify(InputStream is, int prefixLength) throws IOException {
+        Scanner scanner = new Scanner();
+        byte[] buffer = new byte[Math.min(8192, prefixLength)];
+        int remaining = prefixLength;
+        while (remaining > 0 && !scanner.isDone()) {
+            int read = is.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read == -1) {
+                return scanner.finish(true);
+            }
+            scanner.feed(buffer, 0, read);
+            remaining -= read;
+        }
+        return scanner.finish(false);
+    }
+
+    public static Result classify(byte[] buffer, int offset, int length) {
+        Scanner scanner = new Scanner();
+        scanner.feed(buffer, offset, length);
+        return scanner.finish(true);
+    }
+
+    public static Result classify(CharSequence message) {
+        return classify(message, DEFAULT_PREFIX_LENGTH);
+    }
+
+    public static Result classify(CharSequence message, int prefixLength) {
+        Scanner scanner = new Scanner();
+        int length = Math.min(message.length(), prefixLength);
+        for (int i = 0; i < length && !scanner.isDone(); i++) {
+            scanner.feed(message.charAt(i));
+        }
+        return scanner.finish(length == message.length());
+    }
+
+    public static class Result {
+        /**
+         * One of the CLASS_* constants
+         */
+        public final byte type;
+        /**
+         * Offset of the Content-Type header or the armor header line, -1 for CLASS_NONE
+         */
+        public final long start;
+        /**
+         * S/MIME: offset of the body after the header block; PGP: same as start
+         */
+        public final long bodyStart;
+        /**
+         * PGP signed message: offset of the signature armor, otherwise -1
+         */
+        public final long signatureStart;
+        /**
+         * PGP: offset after the armor tail line, -1 if beyond the prefix;
+         * S/MIME: -1, the content extends to the end of the message
+         */
+        public final long end;
+        /**
+         * Boundary parameter for CLASS_SMIME_MULTIPART_SIGNED, otherwise null
+         */
+        public final String boundary;
+
+        Result(byte type, long start, long bodyStart, long signatureStart, long end,
+               String boundary) {
+            this.type = type;
+            this.start = start;
+            this.bodyStart = bodyStart;
+            this.signatureStart = signatureStart;
+            this.end = end;
+            this.boundary = boundary;
+        }
+
+        public boolean isSMime() {
+            return type == CLASS_SMIME_ENVELOPED || type == CLASS_SMIME_OPAQUE_SIGNED
+                    || type == CLASS_SMIME_MULTIPART_SIGNED;
+        }
+
+        public boolean isPgp() {
+            return type == CLASS_PGP_MESSAGE || type == CLASS_PGP_SIGNED_MESSAGE;
+        }
+    }
+
+    /**
+     * Returns the value of a parameter of a Content-Type header value, unquoted, or null
+     *
+     * @param name parameter name, compared case-insensitively
+     */
+    static String getParameter(String headerValue, String name) {
+        int i = headerValue.indexOf(';');
+        int length = headerValue.length();
+        while (i != -1 && i < length) {
+            i++;
+            while (i < length && isWhitespace(headerValue.charAt(i))) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < length && headerValue.charAt(i) != '=' && headerValue.charAt(i) != ';') {
+                i++;
+            }
+            if (i >= length || headerValue.charAt(i) == ';') {
+                continue;
+            }
+            String parameterName = headerValue.substring(nameStart, i).trim();
+            i++;
+
+            StringBuilder value = new StringBuilder();
+            if (i < length && headerValue.charAt(i) == '"') {
+                i++;
+                while (i < length && headerValue.charAt(i) != '"') {
+                    char c = headerValue.charAt(i++);
+                    if (c == '\\' && i < length) {
+                        c = headerValue.charAt(i++);
+                    }
+                    value.append(c);
+                }
+                // skip closing quote
+                i++;
+                while (i < length && headerValue.charAt(i) != ';') {
+                    i++;
+                }
+            } else {
+                while (i < length && headerValue.charAt(i) != ';') {
+                    value.append(headerValue.charAt(i++));
+                }
+            }
+
+            if (parameterName.equalsIgnoreCase(name)) {
+                return value.toString().trim();
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    /**
+     * Push-style state machine, fed one character at a time
+     */
+    private static class Scanner {
+        private static final int STATE_HEADERS = 0;
+        private static final int STATE_BODY = 1;
+
+        private int mState = STATE_HEADERS;
+        private long mOffset;
+
+        private final char[] mLine = new char[MAX_LINE_LENGTH];
+        private int mLineLength;
+        private long mLineStart;
+
+        // Content-Type header currently being collected, including continuation lines
+        private StringBuilder mContentType;
+        private long mContentTypeStart = -1;
+        private byte mSMimeType = CLASS_NONE;
+        private String mBoundary;
+
+        private byte mPgpType = CLASS_NONE;
+        private long mPgpStart = -1;
+        private long mSignatureStart = -1;
+
+        private Result mResult;
+
+        boolean isDone() {
+            return mResult != null;
+        }
+
+        void feed(byte[] buffer, int offset, int length) {
+            int end = offset + length;
+            for (int i = offset; i < end && mResult == null; i++) {
+                feed((char) (buffer[i] & 0xff));
+            }
+        }
+
+        void feed(char c) {
+            if (c == '\n') {
+                // strip CR of CRLF
+                int length = (mLineLength > 0 && mLine[mLineLength - 1] == '\r')
+                        ? mLineLength - 1 : mLineLength;
+                onLine(length, mOffset + 1);
+                mLineLength = 0;
+                mLineStart = mOffset + 1;
+            } else if (mLineLength < MAX_LINE_LENGTH) {
+                mLine[mLineLength++] = c;
+            }
+            mOffset++;
+        }
+
+        /**
+         * @param complete true if the message ended within the prefix
+         */
+        Result finish(boolean complete) {
+            if (mResult != null) {
+                return mResult;
+            }
+            if (mLineLength > 0) {
+                onLine(mLineLength, mOffset);
+                if (mResult != null) {
+                    return mResult;
+                }
+            }
+            if (mState == STATE_HEADERS) {
+                // header block without body
+                endHeaders(mOffset);
+                if (mResult != null) {
+                    return mResult;
+                }
+            }
+            if (!complete && mPgpType != CLASS_NONE) {
+                return new Result(mPgpType, mPgpStart, mPgpStart, mSignatureStart, -1, null);
+            }
+            return new Result(CLASS_NONE, -1, -1, -1, -1, null);
+        }
+
+        private void onLine(int length, long nextLineStart) {
+            if (mState == STATE_HEADERS) {
+                if (length == 0) {
+                    endHeaders(nextLineStart);
+                    return;
+                }
+                if (isWhitespace(mLine[0])) {
+                    if (mContentType != null) {
+                        appendContentType(0, length);
+                    }
+                    return;
+                }
+                finishContentType();
+                int colon = headerNameLength(length);
+                if (colon != -1) {
+                    if (colon == CONTENT_TYPE.length() && regionMatchesIgnoreCase(CONTENT_TYPE)) {
+                        mContentType = new StringBuilder();
+                        mContentTypeStart = mLineStart;
+                        appendContentType(colon + 1, length);
+                    }
+                    return;
+                }
+                // not a header, the input is a body without headers
+                mState = STATE_BODY;
+            }
+            onBodyLine(length, nextLineStart);
+        }
+
+        private void onBodyLine(int length, long nextLineStart) {
+            if (length < 5 || mLine[0] != '-') {
+                return;
+            }
+            switch (mPgpType) {
+                case CLASS_NONE:
+                    if (equalsLine(length, PGP_MESSAGE_BEGIN)) {
+                        mPgpType = CLASS_PGP_MESSAGE;
+                        mPgpStart = mLineStart;
+                    } else if (equalsLine(length, PGP_SIGNED_MESSAGE_BEGIN)) {
+                        mPgpType = CLASS_PGP_SIGNED_MESSAGE;
+                        mPgpStart = mLineStart;
+                    }
+                    break;
+                case CLASS_PGP_MESSAGE:
+                    if (equalsLine(length, PGP_MESSAGE_END)) {
+                        mResult = new Result(CLASS_PGP_MESSAGE, mPgpStart, mPgpStart, -1,
+                                nextLineStart, null);
+                    }
+                    break;
+                case CLASS_PGP_SIGNED_MESSAGE:
+                    if (mSignatureStart == -1 && equalsLine(length, PGP_SIGNATURE_BEGIN)) {
+                        mSignatureStart = mLineStart;
+                    } else if (mSignatureStart != -1 && equalsLine(length, PGP_SIGNATURE_END)) {
+                        mResult = new Result(CLASS_PGP_SIGNED_MESSAGE, mPgpStart, mPgpStart,
+                                mSignatureStart, nextLineStart, null);
+                    }
+                    break;
+            }
+        }
+
+        private void endHeaders(long bodyStart) {
+            finishContentType();
+            mState = STATE_BODY;
+            if (mSMimeType != CLASS_NONE) {
+                mResult = new Result(mSMimeType, mContentTypeStart, bodyStart, -1, -1, mBoundary);
+            }
+        }
+
+        private void appendContentType(int from, int to) {
+            int count = Math.min(to - from, MAX_HEADER_LENGTH - mContentType.length());
+            if (count > 0) {
+                mContentType.append(mLine, from, count);
+            }
+        }
+
+        private void finishContentType() {
+            if (mContentType == null) {
+                return;
+            }
+            String value = mContentType.toString().trim();
+            mContentType = null;
+
+            int semicolon = value.indexOf(';');
+            String mediaType = (semicolon == -1 ? value : value.substring(0, semicolon)).trim()
+                    .toLowerCase(Locale.ENGLISH);
+            if (mediaType.equals("application/pkcs7-mime")
+                    || mediaType.equals("application/x-pkcs7-mime")) {
+                String smimeType = getParameter(value, "smime-type");
+                mSMimeType = "signed-data".equalsIgnoreCase(smimeType)
+                        ? CLASS_SMIME_OPAQUE_SIGNED : CLASS_SMIME_ENVELOPED;
+            } else if (mediaType.equals("multipart/signed")) {
+                String protocol = getParameter(value, "protocol");
+                if ("application/pkcs7-signature".equalsIgnoreCase(protocol)
+                        || "application/x-pkcs7-signature".equalsIgnoreCase(protocol)) {
+                    mSMimeType = CLASS_SMIME_MULTIPART_SIGNED;
+                    // the boundary is case-sensitive
+                    mBoundary = getParameter(value, "boundary");
+                }
+            }
+        }
+
+        /**
+         * Returns the length of the header name if the line is a header, otherwise -1
+         */
+        private int headerNameLength(int length) {
+            for (int i = 0; i < length; i++) {
+                char c = mLine[i];
+                if (c == ':') {
+                    return (i > 0) ? i : -1;
+                }
+                // printable US-ASCII except colon
+                if (c <= ' ' || c > '~') {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private boolean regionMatchesIgnoreCase(String lowerCase) {
+            for (int i = 0; i < lowerCase.length(); i++) {
+                char c = mLine[i];
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                if (c != lowerCase.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean equalsLine(int length, String marker) {
+            // tolerate trailing whitespace after armor lines
+            while (length > 0 && isWhitespace(mLine[length - 1])) {
+                length--;
+            }
+            if (length != marker.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (mLine[i] != marker.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+import android.util.Log;
+
+import org.openintents.smime.SmimeError;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the decrypted text of ACTION_DECRYPT_VERIFY.
+ * <p/>
+ * The output of the provider is passed through a bounded pipe. RESULT_CHARSET is only known
+ * when the operation has finished, so the caller chooses between two modes:
+ * <ul>
+ * <li>{@link #open(SMimeApi, Intent, InputStream, Charset)} waits for the result on the first
+ * read and decodes with RESULT_CHARSET, the fallback charset is only used if the provider returns
+ * none. Until then the output is kept in memory, up to the charset buffer size. Longer text fails
+ * with an IOException, as decrypted text is never written to disk.</li>
+ * <li>{@link #openStreaming(SMimeApi, Intent, InputStream, Charset)} decodes with a charset known
+ * in advance, e.g., from the MIME headers, while the operation is still running. Use it for
+ * large text, or to render text before the operation has finished.</li>
+ * </ul>
+ * The reader must be read or closed, otherwise the operation blocks on the full pipe.
+ * <p/>
+ * Reading blocks, do not read on the main thread!
+ */
+public class SMimeDecryptedReader extends Reader {
+    public static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+    public static final int DEFAULT_CHARSET_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    private final PipedInputStream mPipe;
+    private final Future<Intent> mResult;
+    private final Charset mFallbackCharset;
+    private final int mCharsetBufferSize;
+    private Reader mReader;
+    private Charset mCharset;
+
+    private SMimeDecryptedReader(PipedInputStream pipe, Future<Intent> result, Charset charset,
+                                 Charset fallbackCharset, int charsetBufferSize) {
+        this.mPipe = pipe;
+        this.mResult = result;
+        this.mCharset = charset;
+        this.mFallbackCharset = fallbackCharset;
+        this.mCharsetBufferSize = charsetBufferSize;
+    }
+
+    /**
+     * Starts the operation in the background, the text is decoded with RESULT_CHARSET
+     *
+     * @param data            ACTION_DECRYPT_VERIFY intent
+     * @param is              encrypted or signed input, is closed afterwards
+     * @param fallbackCharset used if the provider returns no charset, e.g., UTF-8
+     */
+    public static SMimeDecryptedReader open(SMimeApi api, Intent data, InputStream is,
+                                            Charset fallbackCharset) throws IOException {
+        return open(api, data, is, fallbackCharset, DEFAULT_PIPE_SIZE, DEFAULT_CHARSET_BUFFER_SIZE);
+    }
+
+    /**
+     * @param charsetBufferSize maximum output kept in memory until the result arrives, reading
+     *                          longer text fails
+     */
+    public static SMimeDecryptedReader open(SMimeApi api, Intent data, InputStream is,
+                                            Charset fallbackCharset, int pipeSize,
+                                            int charsetBufferSize) throws IOException {
+        PipedInputStream pipe = new PipedInputStream(pipeSize);
+        Future<Intent> result = start(api, data, is, pipe);
+        return new SMimeDecryptedReader(pipe, result, null, fallbackCharset, charsetBufferSize);
+    }
+
+    /**
+     * Starts the operation in the background, the text can be read while it is running. Compare
+     * the charset with RESULT_CHARSET of {@link #getResult()} to detect a wrong guess.
+     *
+     * @param data    ACTION_DECRYPT_VERIFY intent
+     * @param is      encrypted or signed input, is closed afterwards
+     * @param charset used for decoding, e.g., from the Content-Type of the message
+     */
+    public static SMimeDecryptedReader openStreaming(SMimeApi api, Intent data, InputStream is,
+                                                     Charset charset) throws IOException {
+        PipedInputStream pipe = new PipedInputStream(DEFAULT_PIPE_SIZE);
+        Future<Intent> result = start(api, data, is, pipe);
+        return new SMimeDecryptedReader(pipe, result, charset, charset, 0);
+    }
+
+    private static Future<Intent> start(final SMimeApi api, final Intent data,
+                                        final InputStream is, PipedInputStream pipe)
+            throws IOException {
+        final PipedOutputStream os = new PipedOutputStream(pipe);
+        return EXECUTOR.submit(new Callable<Intent>() {
+            @Override
+            public Intent call() {
+                return api.executeApi(data, is, os);
+            }
+        });
+    }
+
+    /**
+     * Waits for the result of the operation, call it after reading all text
+     */
+    public Intent getResult() {
+        try {
+            return mResult.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return createErrorResult("interrupted");
+        } catch (ExecutionException e) {
+            Log.e(SMimeApi.TAG, "Exception in decrypt operation", e.getCause());
+            return createErrorResult(e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Returns the charset used for decoding, null before the first read if it is taken from the
+     * result
+     */
+    public Charset getCharset() {
+        return mCharset;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int count) throws IOException {
+        if (mReader == null) {
+            mReader = openReader();
+        }
+        return mReader.read(buffer, offset, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // makes a still running operation fail instead of blocking on the pipe
+        mPipe.close();
+        if (mReader != null) {
+            mReader.close();
+        }
+    }
+
+    private Reader openReader() throws IOException {
+        if (mCharset != null) {
+            return new InputStreamReader(mPipe, mCharset);
+        }
+
+        // the result with RESULT_CHARSET follows the output, take all of it off the pipe first
+        ByteArrayOutputStream output = new ByteArrayOutputStream(
+                Math.min(mCharsetBufferSize, DEFAULT_PIPE_SIZE));
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = mPipe.read(buffer)) != -1) {
+            if (output.size() + read > mCharsetBufferSize) {
+                // makes the operation fail instead of blocking on the pipe
+                mPipe.close();
+                throw new IOException("decrypted text exceeds " + mCharsetBufferSize
+                        + " bytes, use openStreaming() with a known charset");
+            }
+            output.write(buffer, 0, read);
+        }
+
+        Charset resultCharset = getResultCharset(getResult());
+        mCharset = (resultCharset != null) ? resultCharset : mFallbackCharset;
+        return new InputStreamReader(new ByteArrayInputStream(output.toByteArray()), mCharset);
+    }
+
+    private static Charset getResultCharset(Intent result) {
+        String charsetName = result.getStringExtra(SMimeApi.RESULT_CHARSET);
+        if (charsetName == null) {
+            return null;
+        }
+        try {
+            return Charset.forName(charsetName);
+        } catch (IllegalArgumentException e) {
+            // IllegalCharsetNameException and UnsupportedCharsetException
+            Log.e(SMimeApi.TAG, "Unsupported charset " + charsetName, e);
+            return null;
+        }
+    }
+
+    private static Intent createErrorResult(String message) {
+        Intent result = new Intent();
+        result.putExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR);
+        result.putExtra(SMimeApi.RESULT_ERROR,
+                new SmimeError(SmimeError.CLIENT_SIDE_ERROR, message));
+        return result;
+    }
+}
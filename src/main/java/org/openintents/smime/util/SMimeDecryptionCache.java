@@ -0,0 +1,227 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * In-memory cache of decrypted output, keyed by a digest of the ciphertext.
+ * <p/>
+ * Plaintext is never held in the clear: every entry is encrypted with AES under a key that is
+ * generated per process and never leaves it. Entries are evicted least recently used first once
+ * the byte budget is exceeded. Call {@link #purge()} when the app is locked or the user logs out,
+ * this drops all entries and the key.
+ * <p/>
+ * Set on an {@link SMimeApi} with {@link SMimeApi#setDecryptionCache(SMimeDecryptionCache)} to
+ * enable it (it is opt-in).
+ */
+public class SMimeDecryptionCache {
+    private static final String CIPHER_TRANSFORMATION = "AES/CTR/NoPadding";
+    private static final int KEY_SIZE = 128;
+    private static final int IV_SIZE = 16;
+
+    private final long mMaxSize;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private SecretKey mKey;
+    private long mSize;
+
+    /**
+     * @param maxSize maximum size of all cached entries in bytes
+     */
+    public SMimeDecryptionCache(long maxSize) {
+        this.mMaxSize = maxSize;
+    }
+
+    public static boolean isCacheable(Intent data) {
+        return SMimeApi.ACTION_DECRYPT_VERIFY.equals(data.getAction())
+                && !data.hasExtra(SMimeApi.EXTRA_DETACHED_SIGNATURE);
+    }
+
+    /**
+     * Writes the cached plaintext to os and returns a copy of the cached result, or returns null
+     * without writing anything if nothing is cached for the given ciphertext digest.
+     * The OutputStream is not closed.
+     */
+    public Intent get(String key, OutputStream os) throws IOException {
+        Entry entry;
+        SecretKey secretKey;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            secretKey = mKey;
+        }
+        if (entry == null) {
+            return null;
+        }
+
+        Cipher cipher = createCipher(Cipher.DECRYPT_MODE, secretKey, entry.iv);
+        byte[] buf = new byte[4096];
+        for (int offset = 0; offset < entry.ciphertext.length; offset += buf.length) {
+            int len = Math.min(buf.length, entry.ciphertext.length - offset);
+            int written = update(cipher, entry.ciphertext, offset, len, buf);
+            os.write(buf, 0, written);
+        }
+        return new Intent(entry.result);
+    }
+
+    /**
+     * Opens a new entry for the given ciphertext digest. Plaintext written to the returned stream
+     * is encrypted immediately, entries larger than the whole cache are dropped.
+     */
+    public Writer put(String key) {
+        SecretKey secretKey;
+        synchronized (this) {
+            if (mKey == null) {
+                mKey = generateKey();
+            }
+            secretKey = mKey;
+        }
+        byte[] iv = new byte[IV_SIZE];
+        mRandom.nextBytes(iv);
+        return new Writer(key, secretKey, iv);
+    }
+
+    /**
+     * Drops all entries and the process-local key, e.g., on lock or logout.
+     */
+    public synchronized void purge() {
+        mEntries.clear();
+        mSize = 0;
+        mKey = null;
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    private synchronized void commit(String key, SecretKey secretKey, Entry entry) {
+        if (secretKey != mKey) {
+            // purged while writing
+            return;
+        }
+        Entry previous = mEntries.put(key, entry);
+        if (previous != null) {
+            mSize -= previous.ciphertext.length;
+        }
+        mSize += entry.ciphertext.length;
+
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            mSize -= iterator.next().getValue().ciphertext.length;
+            iterator.remove();
+        }
+    }
+
+    private static SecretKey generateKey() {
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(KEY_SIZE);
+            return keyGenerator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Cipher createCipher(int mode, SecretKey secretKey, byte[] iv) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+            cipher.init(mode, secretKey, new IvParameterSpec(iv));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not initialize cache cipher: " + e.getMessage());
+        }
+    }
+
+    private static int update(Cipher cipher, byte[] input, int offset, int len, byte[] output)
+            throws IOException {
+        try {
+            return cipher.update(input, offset, len, output, 0);
+        } catch (ShortBufferException e) {
+            // CTR mode never outputs more than its input
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static class Entry {
+        final byte[] iv;
+        final byte[] ciphertext;
+        final Intent result;
+
+        Entry(byte[] iv, byte[] ciphertext, Intent result) {
+            this.iv = iv;
+            this.ciphertext = ciphertext;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Cache entry being written
+     */
+    public class Writer extends OutputStream {
+        private final String mKey;
+        private final SecretKey mSecretKey;
+        private final byte[] mIv;
+        private final byte[] mBuffer = new byte[4096];
+        private ByteArrayOutputStream mCiphertext = new ByteArrayOutputStream();
+        private Cipher mCipher;
+
+        private Writer(String key, SecretKey secretKey, byte[] iv) {
+            this.mKey = key;
+            this.mSecretKey = secretKey;
+            this.mIv = iv;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mCiphertext == null) {
+                return;
+            }
+            if (mCiphertext.size() + count > mMaxSize) {
+                // would evict everything else, don't cache it at all
+                mCiphertext = null;
+                return;
+            }
+            if (mCipher == null) {
+                mCipher = createCipher(Cipher.ENCRYPT_MODE, mSecretKey, mIv);
+            }
+            while (count > 0) {
+                int len = Math.min(count, mBuffer.length);
+                int written = update(mCipher, buffer, offset, len, mBuffer);
+                mCiphertext.write(mBuffer, 0, written);
+                offset += len;
+                count -= len;
+            }
+        }
+
+        /**
+         * Makes the written plaintext available together with the result of the operation
+         */
+        public void commit(Intent result) {
+            if (mCiphertext != null) {
+                SMimeDecryptionCache.this.commit(mKey, mSecretKey,
+                        new Entry(mIv, mCiphertext.toByteArray(), new Intent(result)));
+                mCiphertext = null;
+            }
+        }
+    }
+}
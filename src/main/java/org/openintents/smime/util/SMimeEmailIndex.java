@@ -0,0 +1,314 @@
+package org.openintents.smime.util;
+
+import org.openintents.smime.SmimeSignatureResult;
+
+import java.net.IDN;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * In-memory index from canonical email addresses to certificate ids, filled from confirmed
+ * signature results, answering "have we seen a certificate for this sender" without asking the
+ * provider. Set on an {@link SMimeApi} with {@link SMimeApi#setEmailIndex(SMimeEmailIndex)}.
+ * <p/>
+ * The index is a local hint only. It must not decide which certificates to encrypt to: a signing
+ * certificate need not be usable for encryption, and with plus-addressing several addresses map
+ * to one entry. Recipients are always resolved by the provider.
+ * <p/>
+ * Addresses are canonicalized with {@link #canonicalize(String, boolean)}, so case differences,
+ * Unicode and ASCII forms of international domains and, optionally, plus-addressing map to the
+ * same entry. The index is an open-addressing hash table with linear probing and primitive
+ * long values. If an address belongs to several certificates, the most recently added wins.
+ * The number of entries is bounded, when it is reached an entry which has not been looked up
+ * recently is evicted (CLOCK).
+ */
+public class SMimeEmailIndex {
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final boolean mStripPlus;
+    private final int mMaxEntries;
+    private String[] mKeys = new String[INITIAL_CAPACITY];
+    private long[] mValues = new long[INITIAL_CAPACITY];
+    // set on lookup, gives an entry a second chance when the clock hand passes it
+    private boolean[] mReferenced = new boolean[INITIAL_CAPACITY];
+    private int mClockHand;
+    private int mSize;
+
+    /**
+     * @param stripPlus true to ignore "+tag" suffixes of local parts, only use it if the
+     *                  mail providers of the users support plus-addressing
+     */
+    public SMimeEmailIndex(boolean stripPlus) {
+        this(stripPlus, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries maximum number of addresses kept in the index
+     */
+    public SMimeEmailIndex(boolean stripPlus, int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.mStripPlus = stripPlus;
+        this.mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the canonical form of an email address, which may be given as "Name <email>":
+     * trimmed and lower case, with the domain in ASCII (punycode) form
+     *
+     * @param stripPlus true to remove a "+tag" suffix of the local part
+     * @return the canonical address, or null if address contains no '@'
+     */
+    public static String canonicalize(String address, boolean stripPlus) {
+        String email = SMimeRecipientResolver.normalize(address);
+        int at = email.lastIndexOf('@');
+        if (at <= 0 || at == email.length() - 1) {
+            return null;
+        }
+
+        String local = email.substring(0, at);
+        if (stripPlus) {
+            int plus = local.indexOf('+');
+            if (plus > 0) {
+                local = local.substring(0, plus);
+            }
+        }
+
+        String domain = email.substring(at + 1);
+        if (!isAscii(domain)) {
+            try {
+                domain = IDN.toASCII(domain, IDN.ALLOW_UNASSIGNED).toLowerCase(Locale.ENGLISH);
+            } catch (IllegalArgumentException e) {
+                // not a valid IDN, keep the Unicode form
+            }
+        }
+        return local + '@' + domain;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds all email addresses of the user ids of a signature result with a confirmed
+     * certificate. Unconfirmed certificates, e.g., self-issued ones, are not added. For a revoked
+     * or expired certificate, its addresses are removed instead.
+     */
+    public void add(SmimeSignatureResult signatureResult) {
+        List<String> userIds = signatureResult.getUserIds();
+        long keyId = signatureResult.getKeyId();
+        if (userIds == null || keyId == 0) {
+            return;
+        }
+        switch (signatureResult.getResult()) {
+            case SmimeSignatureResult.RESULT_VALID_CONFIRMED: {
+                for (String userId : userIds) {
+                    put(getEmail(userId), keyId);
+                }
+                break;
+            }
+            case SmimeSignatureResult.RESULT_INVALID_KEY_REVOKED:
+            case SmimeSignatureResult.RESULT_INVALID_KEY_EXPIRED: {
+                for (String userId : userIds) {
+                    remove(getEmail(userId), keyId);
+                }
+                break;
+            }
+        }
+    }
+
+    private static String getEmail(String userId) {
+        String email = SMimeUtils.splitUserId(userId).email;
+        // certificates often carry the plain address as user id
+        return (email != null) ? email : userId;
+    }
+
+    private String toKey(String address) {
+        return (address != null) ? canonicalize(address, mStripPlus) : null;
+    }
+
+    /**
+     * @return false if the address could not be canonicalized
+     */
+    public synchronized boolean put(String address, long keyId) {
+        String key = toKey(address);
+        if (key == null) {
+            return false;
+        }
+        int slot = findSlot(mKeys, key);
+        if (mKeys[slot] == null) {
+            if (mSize >= mMaxEntries) {
+                evict();
+            }
+            if ((mSize + 1) * 2 > mKeys.length) {
+                resize(mKeys.length * 2);
+            }
+            slot = findSlot(mKeys, key);
+            mKeys[slot] = key;
+            mReferenced[slot] = false;
+            mSize++;
+        }
+        mValues[slot] = keyId;
+        return true;
+    }
+
+    /**
+     * Returns the certificate id of the address, or defaultValue if it is unknown or null
+     */
+    public synchronized long getKeyId(String address, long defaultValue) {
+        String key = toKey(address);
+        if (key == null) {
+            return defaultValue;
+        }
+        int slot = findSlot(mKeys, key);
+        if (mKeys[slot] == null) {
+            return defaultValue;
+        }
+        mReferenced[slot] = true;
+        return mValues[slot];
+    }
+
+    public synchronized boolean contains(String address) {
+        String key = toKey(address);
+        return key != null && mKeys[findSlot(mKeys, key)] != null;
+    }
+
+    /**
+     * @return false if the address was not in the index
+     */
+    public synchronized boolean remove(String address) {
+        String key = toKey(address);
+        if (key == null) {
+            return false;
+        }
+        int slot = findSlot(mKeys, key);
+        if (mKeys[slot] == null) {
+            return false;
+        }
+        deleteSlot(slot);
+        return true;
+    }
+
+    /**
+     * Removes the address only if it belongs to the given certificate
+     *
+     * @return false if the address was not in the index with this certificate id
+     */
+    public synchronized boolean remove(String address, long keyId) {
+        String key = toKey(address);
+        if (key == null) {
+            return false;
+        }
+        int slot = findSlot(mKeys, key);
+        if (mKeys[slot] == null || mValues[slot] != keyId) {
+            return false;
+        }
+        deleteSlot(slot);
+        return true;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized void clear() {
+        mKeys = new String[INITIAL_CAPACITY];
+        mValues = new long[INITIAL_CAPACITY];
+        mReferenced = new boolean[INITIAL_CAPACITY];
+        mClockHand = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Returns the slot of the key, or the empty slot where it belongs. The table is never more
+     * than half full, so there always is an empty slot.
+     */
+    private static int findSlot(String[] keys, String key) {
+        int mask = keys.length - 1;
+        int slot = homeSlot(key, mask);
+        while (keys[slot] != null && !keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int homeSlot(String key, int mask) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Removes the entry of the slot. Following entries of the probe sequence are shifted back
+     * into the gap, so no tombstones are needed.
+     */
+    private void deleteSlot(int slot) {
+        int mask = mKeys.length - 1;
+        int gap = slot;
+        int i = slot;
+        while (true) {
+            i = (i + 1) & mask;
+            if (mKeys[i] == null) {
+                break;
+            }
+            // an entry may fill the gap if the gap lies between its home slot and its slot
+            int home = homeSlot(mKeys[i], mask);
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                mKeys[gap] = mKeys[i];
+                mValues[gap] = mValues[i];
+                mReferenced[gap] = mReferenced[i];
+                gap = i;
+            }
+        }
+        mKeys[gap] = null;
+        mValues[gap] = 0;
+        mReferenced[gap] = false;
+        mSize--;
+    }
+
+    /**
+     * Removes the first entry after the clock hand which has not been looked up since the hand
+     * passed it last
+     */
+    private void evict() {
+        int mask = mKeys.length - 1;
+        while (true) {
+            int slot = mClockHand;
+            mClockHand = (mClockHand + 1) & mask;
+            if (mKeys[slot] == null) {
+                continue;
+            }
+            if (mReferenced[slot]) {
+                mReferenced[slot] = false;
+                continue;
+            }
+            deleteSlot(slot);
+            return;
+        }
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = mKeys;
+        long[] oldValues = mValues;
+        boolean[] oldReferenced = mReferenced;
+        mKeys = new String[capacity];
+        mValues = new long[capacity];
+        mReferenced = new boolean[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = findSlot(mKeys, oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mValues[slot] = oldValues[i];
+                mReferenced[slot] = oldReferenced[i];
+            }
+        }
+        mClockHand = 0;
+    }
+}
@@ -0,0 +1,401 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Disk-backed cache of encrypted output and its result, keyed by a digest of the plaintext, the
+ * sorted recipient certificate ids and all options that influence the encrypted output.
+ * <p/>
+ * Only requests using EXTRA_CERTIFICATE_IDS and no extras besides the ones in the key are cached.
+ * Requests with EXTRA_USER_IDS or EXTRA_USER_ID are not, as user ids might resolve to different
+ * certificates over time. Set on an {@link SMimeApi} with
+ * {@link SMimeApi#setEncryptionCache(SMimeEncryptionCache)} to enable it (it is opt-in).
+ * <p/>
+ * The plaintext is kept in memory while its digest is computed, it is never written to disk.
+ * Larger plaintext is not cached. Of the result, only the extras in KNOWN_RESULT_EXTRAS are
+ * stored; results with other extras are not cached.
+ */
+public class SMimeEncryptionCache {
+    public static final int DEFAULT_MAX_PLAINTEXT_SIZE = 1024 * 1024;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String RESULT_SUFFIX = ".result";
+    private static final int RESULT_FORMAT_VERSION = 2;
+
+    // "xxxxxxxx-", temp files of other prefixes are left over from previous processes
+    private static final String TEMP_PREFIX = UUID.randomUUID().toString().substring(0, 9);
+
+    // extras which are part of the key or do not influence the encrypted output
+    private static final Set<String> KNOWN_EXTRAS = new HashSet<>(Arrays.asList(
+            SMimeApi.EXTRA_API_VERSION,
+            SMimeApi.EXTRA_CERTIFICATE_IDS,
+            SMimeApi.EXTRA_SIGN_CERTIFICATE_ID,
+            SMimeApi.EXTRA_REQUEST_ASCII_ARMOR,
+            SMimeApi.EXTRA_ENABLE_COMPRESSION,
+            SMimeApi.EXTRA_ORIGINAL_FILENAME,
+            SMimeApi.EXTRA_ENCRYPT_OPPORTUNISTIC,
+            SMimeApi.EXTRA_PASSPHRASE));
+
+    // result extras which are stored with an entry, all of type int
+    private static final Set<String> KNOWN_RESULT_EXTRAS = new HashSet<>(Arrays.asList(
+            SMimeApi.RESULT_CODE,
+            SMimeApi.RESULT_TYPE));
+
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final int mMaxPlaintextSize;
+
+    private long mSize = -1;
+
+    /**
+     * @param directory directory exclusively used by this cache
+     * @param maxSize   maximum size of all cached entries in bytes
+     */
+    public SMimeEncryptionCache(File directory, long maxSize) {
+        this(directory, maxSize, DEFAULT_MAX_PLAINTEXT_SIZE);
+    }
+
+    /**
+     * @param maxPlaintextSize maximum size of plaintext kept in memory to compute the key,
+     *                         requests with more plaintext are not cached
+     */
+    public SMimeEncryptionCache(File directory, long maxSize, int maxPlaintextSize) {
+        this.mDirectory = directory;
+        this.mMaxSize = maxSize;
+        this.mMaxPlaintextSize = maxPlaintextSize;
+    }
+
+    public int getMaxPlaintextSize() {
+        return mMaxPlaintextSize;
+    }
+
+    public static boolean isCacheable(Intent data) {
+        String action = data.getAction();
+        if (!SMimeApi.ACTION_ENCRYPT.equals(action) && !SMimeApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
+            return false;
+        }
+        if (data.getLongArrayExtra(SMimeApi.EXTRA_CERTIFICATE_IDS) == null) {
+            return false;
+        }
+        // any other extra, e.g., EXTRA_USER_IDS, might add recipients not covered by the key
+        for (String extra : data.getExtras().keySet()) {
+            if (!KNOWN_EXTRAS.contains(extra)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static MessageDigest createContentDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates the cache key of an encryption request.
+     *
+     * @param data          request, see {@link #isCacheable(Intent)}
+     * @param contentDigest digest of the plaintext, see {@link #createContentDigest()}
+     * @return key usable with {@link #get(String, OutputStream)} and {@link #put(String)}
+     */
+    public static String createKey(Intent data, byte[] contentDigest) {
+        long[] certificateIds = data.getLongArrayExtra(SMimeApi.EXTRA_CERTIFICATE_IDS).clone();
+        Arrays.sort(certificateIds);
+
+        StringBuilder options = new StringBuilder();
+        options.append(data.getAction());
+        for (long certificateId : certificateIds) {
+            options.append(',').append(certificateId);
+        }
+        if (SMimeApi.ACTION_SIGN_AND_ENCRYPT.equals(data.getAction())) {
+            options.append("|sign=").append(data.getLongExtra(SMimeApi.EXTRA_SIGN_CERTIFICATE_ID, 0));
+        }
+        options.append("|armor=").append(data.getBooleanExtra(SMimeApi.EXTRA_REQUEST_ASCII_ARMOR, false));
+        options.append("|compression=").append(data.getBooleanExtra(SMimeApi.EXTRA_ENABLE_COMPRESSION, true));
+        options.append("|filename=").append(data.getStringExtra(SMimeApi.EXTRA_ORIGINAL_FILENAME));
+
+        MessageDigest digest = createContentDigest();
+        digest.update(contentDigest);
+        try {
+            digest.update(options.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return SMimeUtils.toHex(digest.digest());
+    }
+
+    /**
+     * Writes the cached encrypted output to os and returns a copy of the cached result, or returns
+     * null without writing anything if nothing is cached for the given key.
+     * The OutputStream is not closed.
+     */
+    public Intent get(String key, OutputStream os) throws IOException {
+        File file = new File(mDirectory, key);
+        InputStream in;
+        Intent result;
+        synchronized (this) {
+            try {
+                in = new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+            result = readResult(new File(mDirectory, key + RESULT_SUFFIX));
+            if (result == null) {
+                in.close();
+                return null;
+            }
+            // last modified is used as access time for eviction
+            file.setLastModified(System.currentTimeMillis());
+        }
+        // an entry evicted meanwhile stays readable through the open stream
+        try {
+            ParcelFileDescriptorUtil.copy(in, os);
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * Opens a new entry for writing. The entry is only visible to
+     * {@link #get(String, OutputStream)} after {@link Entry#commit(Intent)}.
+     */
+    public Entry put(String key) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create cache directory " + mDirectory);
+        }
+        File tempFile = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, mDirectory);
+        return new Entry(key, tempFile);
+    }
+
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+        mSize = 0;
+    }
+
+    public synchronized long size() {
+        if (mSize < 0) {
+            mSize = 0;
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.endsWith(TEMP_SUFFIX)) {
+                        if (!name.startsWith(TEMP_PREFIX)) {
+                            // left over from a previous process
+                            file.delete();
+                        }
+                    } else {
+                        mSize += file.length();
+                    }
+                }
+            }
+        }
+        return mSize;
+    }
+
+    private synchronized void commit(String key, File tempFile, byte[] result) throws IOException {
+        File file = new File(mDirectory, key);
+        File resultFile = new File(mDirectory, key + RESULT_SUFFIX);
+        size();
+        delete(file);
+        delete(resultFile);
+
+        // the entry becomes visible when the output is renamed, so write the result first
+        try {
+            OutputStream out = new FileOutputStream(resultFile);
+            try {
+                out.write(result);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            resultFile.delete();
+            tempFile.delete();
+            throw e;
+        }
+        mSize += resultFile.length();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            delete(resultFile);
+            throw new IOException("Could not commit cache entry " + key);
+        }
+        mSize += file.length();
+        trimToSize();
+    }
+
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            mSize -= length;
+        }
+    }
+
+    /**
+     * Serializes the known extras of a result
+     *
+     * @throws IOException if the result has other extras, it cannot be cached then
+     */
+    private static byte[] writeResult(Intent result) throws IOException {
+        Bundle extras = result.getExtras();
+        Set<String> keys = (extras != null) ? extras.keySet() : Collections.<String>emptySet();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(RESULT_FORMAT_VERSION);
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            Object value = extras.get(key);
+            if (!KNOWN_RESULT_EXTRAS.contains(key) || !(value instanceof Integer)) {
+                throw new IOException("Result extra " + key + " cannot be cached");
+            }
+            out.writeUTF(key);
+            out.writeInt((Integer) value);
+        }
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Returns the result stored in file, or null if it is missing or unreadable
+     */
+    private static Intent readResult(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != RESULT_FORMAT_VERSION) {
+                    return null;
+                }
+                Intent result = new Intent();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    if (!KNOWN_RESULT_EXTRAS.contains(key)) {
+                        return null;
+                    }
+                    result.putExtra(key, in.readInt());
+                }
+                return result;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.e(SMimeApi.TAG, "Could not read cached result " + file, e);
+            return null;
+        }
+    }
+
+    private void trimToSize() {
+        if (mSize <= mMaxSize) {
+            return;
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // evict least recently used entries first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (mSize <= mMaxSize) {
+                break;
+            }
+            String name = file.getName();
+            if (!name.endsWith(TEMP_SUFFIX)) {
+                delete(file);
+                if (!name.endsWith(RESULT_SUFFIX)) {
+                    delete(new File(mDirectory, name + RESULT_SUFFIX));
+                }
+            }
+        }
+    }
+
+    /**
+     * Cache entry being written
+     */
+    public class Entry {
+        private final String mKey;
+        private final File mTempFile;
+        private final OutputStream mOutputStream;
+
+        private Entry(String key, File tempFile) throws IOException {
+            this.mKey = key;
+            this.mTempFile = tempFile;
+            this.mOutputStream = new FileOutputStream(tempFile);
+        }
+
+        public OutputStream getOutputStream() {
+            return mOutputStream;
+        }
+
+        /**
+         * Makes the entry visible, only call it if the output has been written completely.
+         * The entry is discarded if it cannot be committed.
+         *
+         * @param result result of the operation, returned by {@link #get(String, OutputStream)}
+         * @throws IOException e.g., if the result has extras which cannot be cached
+         */
+        public void commit(Intent result) throws IOException {
+            mOutputStream.close();
+            byte[] serialized;
+            try {
+                serialized = writeResult(result);
+            } catch (IOException e) {
+                mTempFile.delete();
+                throw e;
+            }
+            SMimeEncryptionCache.this.commit(mKey, mTempFile, serialized);
+        }
+
+        public void abort() {
+            try {
+                mOutputStream.close();
+            } catch (IOException e) {
+                Log.e(SMimeApi.TAG, "IOException when closing cache entry", e);
+            }
+            mTempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Builds multipart/signed and application/pkcs7-mime messages while streaming.
+ * <p/>
+ * For signed messages, the body part is written to the provider (ACTION_SIGN) and to the output
+ * at the same time, afterwards the detached signature is appended as base64 part. For enveloped
+ * messages, the output of the provider (ACTION_ENCRYPT, ACTION_SIGN_AND_ENCRYPT) is
+ * base64-encoded into the output. The message is never held in memory. If the operation fails,
+ * the output contains an incomplete message and must be discarded.
+ * <p/>
+ * The methods of this class block, do not call them on the main thread!
+ */
+public class SMimeMessageBuilder {
+    public static final String DEFAULT_MICALG = "sha-256";
+
+    private static final String CRLF = "\r\n";
+
+    /**
+     * Writes a multipart/signed message
+     *
+     * @param signData ACTION_SIGN intent, e.g., with EXTRA_SIGN_CERTIFICATE_ID
+     * @param bodyPart writes the canonical first body part, i.e., its MIME headers, an empty
+     *                 line and its content with CRLF line endings, see
+     *                 {@link CrlfOutputStream#canonicalize(SMimeApi.SMimeDataSource)}
+     * @param micalg   hash algorithm used by the provider, e.g., {@link #DEFAULT_MICALG}
+     * @param out      receives the message, is not closed
+     * @return result of ACTION_SIGN
+     */
+    public static Intent writeMultipartSigned(SMimeApi api, Intent signData,
+                                              final SMimeApi.SMimeDataSource bodyPart,
+                                              String micalg, final OutputStream out)
+            throws IOException {
+        String boundary = createBoundary();
+        writeAscii(out, "Content-Type: multipart/signed; protocol=\"application/pkcs7-signature\";"
+                + " micalg=" + micalg + "; boundary=\"" + boundary + "\"" + CRLF
+                + CRLF
+                + "This is an S/MIME signed message" + CRLF
+                + "--" + boundary + CRLF);
+
+        // the body part is written on the transfer thread, wait for it before continuing
+        final CountDownLatch bodyWritten = new CountDownLatch(1);
+        final IOException[] bodyException = new IOException[1];
+        SMimeApi.SMimeDataSource teeSource = new SMimeApi.SMimeDataSource() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                try {
+                    OutputStream tee = new TeeOutputStream(os, new NonClosingOutputStream(out));
+                    bodyPart.writeTo(tee);
+                    tee.flush();
+                } catch (IOException e) {
+                    bodyException[0] = e;
+                    throw e;
+                } finally {
+                    bodyWritten.countDown();
+                }
+            }
+        };
+        ParcelFileDescriptor input = ParcelFileDescriptorUtil.asyncPipeFromDataSource(teeSource);
+        // the transfer thread is running now, it ends at the latest when executeApi closes input
+        Intent result = api.executeApi(signData, input, null);
+
+        try {
+            bodyWritten.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing body part");
+        }
+        if (result.getIntExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR)
+                != SMimeApi.RESULT_CODE_SUCCESS) {
+            return result;
+        }
+        if (bodyException[0] != null) {
+            throw bodyException[0];
+        }
+        byte[] signature = result.getByteArrayExtra(SMimeApi.RESULT_DETACHED_SIGNATURE);
+        if (signature == null) {
+            throw new IOException("provider returned no detached signature");
+        }
+
+        // the line break before a delimiter belongs to the delimiter, not to the body part
+        writeAscii(out, CRLF
+                + "--" + boundary + CRLF
+                + "Content-Type: application/pkcs7-signature; name=\"smime.p7s\"" + CRLF
+                + "Content-Transfer-Encoding: base64" + CRLF
+                + "Content-Disposition: attachment; filename=\"smime.p7s\"" + CRLF
+                + CRLF);
+        Base64EncodingOutputStream base64 = new Base64EncodingOutputStream(out);
+        base64.write(signature);
+        base64.finish();
+        writeAscii(out, CRLF + "--" + boundary + "--" + CRLF);
+        out.flush();
+        return result;
+    }
+
+    /**
+     * Writes an application/pkcs7-mime message with smime-type enveloped-data
+     *
+     * @param encryptData ACTION_ENCRYPT or ACTION_SIGN_AND_ENCRYPT intent, without ascii armor
+     * @param content     writes the canonical MIME entity to be encrypted
+     * @param out         receives the message, is not closed
+     * @return result of the operation
+     */
+    public static Intent writeEnveloped(SMimeApi api, Intent encryptData,
+                                        SMimeApi.SMimeDataSource content, OutputStream out)
+            throws IOException {
+        writeAscii(out, "Content-Type: application/pkcs7-mime; smime-type=enveloped-data;"
+                + " name=\"smime.p7m\"" + CRLF
+                + "Content-Transfer-Encoding: base64" + CRLF
+                + "Content-Disposition: attachment; filename=\"smime.p7m\"" + CRLF
+                + CRLF);
+
+        // executeApi closes the stream, which writes the last base64 group
+        OutputStream base64 = new Base64EncodingOutputStream(new NonClosingOutputStream(out));
+        Intent result = api.executeApi(encryptData, content, base64);
+        out.flush();
+        return result;
+    }
+
+    private static String createBoundary() {
+        return "----=_smime_" + UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private static void writeAscii(OutputStream out, String text) throws IOException {
+        out.write(text.getBytes("US-ASCII"));
+    }
+
+    /**
+     * Flushes instead of closing the underlying stream
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+import android.util.Log;
+
+import org.openintents.smime.SmimeError;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Splits a multipart/signed message (RFC 1847) in a single pass into the signed part and the
+ * detached signature.
+ * <p/>
+ * The signed part, i.e., the exact bytes of the first body part including its headers, is
+ * streamed to a sink, the signature part is collected in a small buffer and transfer-decoded.
+ * As the signature follows the signed part but EXTRA_DETACHED_SIGNATURE has to be known when
+ * the operation starts, {@link #verify(SMimeApi, Intent, InputStream, OutputStream)} spools
+ * the signed part to a temporary file, so memory stays flat for any message size.
+ */
+public class SMimeMultipartSignedParser {
+    public static final int MAX_SIGNATURE_LENGTH = 64 * 1024;
+
+    // longer lines are passed through in several segments, boundaries are at most 70 chars
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[8192];
+    private int mPosition;
+    private int mLimit;
+
+    // current segment, including its line terminator if complete
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+    private int mLineLength;
+    private boolean mLineComplete = true;
+    private boolean mAtLineStart;
+    private boolean mEof;
+
+    private SMimeMultipartSignedParser(InputStream in) {
+        this.mIn = in;
+    }
+
+    public static class Result {
+        public final String boundary;
+        /**
+         * micalg parameter of the Content-Type header, null if the header was not parsed
+         */
+        public final String micalg;
+        /**
+         * Decoded signature, e.g., for EXTRA_DETACHED_SIGNATURE
+         */
+        public final byte[] signature;
+        /**
+         * Number of bytes written to the sink
+         */
+        public final long signedLength;
+
+        Result(String boundary, String micalg, byte[] signature, long signedLength) {
+            this.boundary = boundary;
+            this.micalg = micalg;
+            this.signature = signature;
+            this.signedLength = signedLength;
+        }
+    }
+
+    /**
+     * Parses a whole message, starting with its headers
+     *
+     * @param signedSink receives the signed part, is not closed
+     */
+    public static Result parse(InputStream message, OutputStream signedSink) throws IOException {
+        SMimeMultipartSignedParser parser = new SMimeMultipartSignedParser(message);
+        String contentType = parser.readHeaders().contentType;
+        if (contentType == null) {
+            throw new IOException("missing Content-Type header");
+        }
+        String boundary = SMimeContentClassifier.getParameter(contentType, "boundary");
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IOException("missing boundary in multipart/signed Content-Type");
+        }
+        String micalg = SMimeContentClassifier.getParameter(contentType, "micalg");
+        return parser.parseBody(boundary, micalg, signedSink);
+    }
+
+    /**
+     * Parses the body of a multipart/signed entity whose headers have already been read
+     *
+     * @param signedSink receives the signed part, is not closed
+     */
+    public static Result parseBody(InputStream body, String boundary, OutputStream signedSink)
+            throws IOException {
+        return new SMimeMultipartSignedParser(body).parseBody(boundary, null, signedSink);
+    }
+
+    /**
+     * Verifies a multipart/signed message with ACTION_DECRYPT_VERIFY. The signed part is spooled
+     * to the cache directory and streamed to the provider from there.
+     *
+     * @param data    ACTION_DECRYPT_VERIFY intent, EXTRA_DETACHED_SIGNATURE is added
+     * @param message the whole message, starting with its headers, is closed afterwards
+     * @param os      may be null
+     */
+    public static Intent verify(SMimeApi api, Intent data, InputStream message, OutputStream os) {
+        File spoolFile = null;
+        try {
+            spoolFile = File.createTempFile("signed", ".tmp", api.mContext.getCacheDir());
+            OutputStream spool = new BufferedOutputStream(new FileOutputStream(spoolFile));
+            Result result;
+            try {
+                result = parse(message, spool);
+            } finally {
+                spool.close();
+                message.close();
+            }
+
+            data.putExtra(SMimeApi.EXTRA_DETACHED_SIGNATURE, result.signature);
+            final File signedFile = spoolFile;
+            return api.executeApi(data, new SMimeApi.SMimeDataSource() {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    InputStream is = new FileInputStream(signedFile);
+                    try {
+                        ParcelFileDescriptorUtil.copy(is, os);
+                    } finally {
+                        is.close();
+                    }
+                }
+            }, os);
+        } catch (IOException e) {
+            Log.e(SMimeApi.TAG, "Could not parse multipart/signed message", e);
+            Intent result = new Intent();
+            result.putExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR);
+            result.putExtra(SMimeApi.RESULT_ERROR,
+                    new SmimeError(SmimeError.CLIENT_SIDE_ERROR, e.getMessage()));
+            return result;
+        } finally {
+            // executeApi returns after the data source has been read completely
+            if (spoolFile != null && !spoolFile.delete()) {
+                Log.e(SMimeApi.TAG, "Could not delete spool file " + spoolFile);
+            }
+        }
+    }
+
+    private Result parseBody(String boundary, String micalg, OutputStream signedSink)
+            throws IOException {
+        byte[] delimiter = ("--" + boundary).getBytes("US-ASCII");
+        if (delimiter.length + 4 > MAX_LINE_LENGTH) {
+            throw new IOException("boundary too long");
+        }
+
+        // preamble
+        while (true) {
+            if (!readSegment()) {
+                throw new IOException("first boundary not found");
+            }
+            if (isDelimiter(delimiter) != DELIMITER_NONE) {
+                break;
+            }
+        }
+
+        // signed part, the line break before the next delimiter belongs to the delimiter
+        long signedLength = 0;
+        int pendingTerminator = 0;
+        while (true) {
+            if (!readSegment()) {
+                throw new IOException("signed part not terminated");
+            }
+            int delimiterType = isDelimiter(delimiter);
+            if (delimiterType == DELIMITER_PART) {
+                break;
+            } else if (delimiterType == DELIMITER_CLOSE) {
+                throw new IOException("signature part missing");
+            }
+            if (pendingTerminator > 0) {
+                writeTerminator(signedSink, pendingTerminator);
+                signedLength += pendingTerminator;
+            }
+            int terminator = terminatorLength();
+            signedSink.write(mLine, 0, mLineLength - terminator);
+            signedLength += mLineLength - terminator;
+            pendingTerminator = terminator;
+        }
+
+        // signature part
+        String transferEncoding = readHeaders().transferEncoding;
+        ByteArrayOutputStream signature = new ByteArrayOutputStream();
+        int pendingSignatureTerminator = 0;
+        while (true) {
+            if (!readSegment()) {
+                throw new IOException("signature part not terminated");
+            }
+            if (isDelimiter(delimiter) != DELIMITER_NONE) {
+                break;
+            }
+            if (pendingSignatureTerminator > 0) {
+                writeTerminator(signature, pendingSignatureTerminator);
+            }
+            int terminator = terminatorLength();
+            signature.write(mLine, 0, mLineLength - terminator);
+            pendingSignatureTerminator = terminator;
+            if (signature.size() > MAX_SIGNATURE_LENGTH) {
+                throw new IOException("signature part too large");
+            }
+        }
+
+        return new Result(boundary, micalg, decode(signature.toByteArray(), transferEncoding),
+                signedLength);
+    }
+
+    private static byte[] decode(byte[] encoded, String transferEncoding) throws IOException {
+        if (transferEncoding == null || !"base64".equalsIgnoreCase(transferEncoding.trim())) {
+            return encoded;
+        }
+        InputStream decoder = new Base64DecodingInputStream(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(encoded.length / 4 * 3);
+        ParcelFileDescriptorUtil.copy(decoder, decoded);
+        return decoded.toByteArray();
+    }
+
+    private static void writeTerminator(OutputStream os, int length) throws IOException {
+        if (length == 2) {
+            os.write('\r');
+        }
+        os.write('\n');
+    }
+
+    private int terminatorLength() {
+        if (!mLineComplete) {
+            return 0;
+        }
+        return (mLineLength >= 2 && mLine[mLineLength - 2] == '\r') ? 2 : 1;
+    }
+
+    private static final int DELIMITER_NONE = 0;
+    private static final int DELIMITER_PART = 1;
+    private static final int DELIMITER_CLOSE = 2;
+
+    /**
+     * Checks if the current segment is a whole line "--boundary" or "--boundary--",
+     * optionally followed by whitespace. The last line of the input counts as whole line even
+     * without line break, a lone CR is then ignored.
+     */
+    private int isDelimiter(byte[] delimiter) {
+        if (!mAtLineStart || !(mLineComplete || mEof)) {
+            return DELIMITER_NONE;
+        }
+        int length = mLineLength - terminatorLength();
+        if (!mLineComplete && length > 0 && mLine[length - 1] == '\r') {
+            length--;
+        }
+        if (length < delimiter.length) {
+            return DELIMITER_NONE;
+        }
+        for (int i = 0; i < delimiter.length; i++) {
+            if (mLine[i] != delimiter[i]) {
+                return DELIMITER_NONE;
+            }
+        }
+        int i = delimiter.length;
+        int type = DELIMITER_PART;
+        if (i + 1 < length && mLine[i] == '-' && mLine[i + 1] == '-') {
+            type = DELIMITER_CLOSE;
+            i += 2;
+        }
+        for (; i < length; i++) {
+            if (mLine[i] != ' ' && mLine[i] != '\t') {
+                return DELIMITER_NONE;
+            }
+        }
+        return type;
+    }
+
+    private static class Headers {
+        String contentType;
+        String transferEncoding;
+    }
+
+    /**
+     * Reads a header block up to and including the empty line
+     */
+    private Headers readHeaders() throws IOException {
+        Headers headers = new Headers();
+        StringBuilder current = null;
+        String currentName = null;
+        while (true) {
+            if (!readSegment()) {
+                throw new IOException("header block not terminated");
+            }
+            if (!mAtLineStart) {
+                // remainder of an overlong header line
+                if (current != null) {
+                    appendHeader(current);
+                }
+                continue;
+            }
+            int length = mLineLength - terminatorLength();
+            if (length > 0 && (mLine[0] == ' ' || mLine[0] == '\t')) {
+                if (current != null) {
+                    appendHeader(current);
+                }
+                continue;
+            }
+            finishHeader(headers, currentName, current);
+            current = null;
+            currentName = null;
+            if (length == 0) {
+                return headers;
+            }
+
+            int colon = -1;
+            for (int i = 0; i < length; i++) {
+                if (mLine[i] == ':') {
+                    colon = i;
+                    break;
+                }
+            }
+            if (colon > 0) {
+                currentName = new String(mLine, 0, colon, "US-ASCII").trim()
+                        .toLowerCase(Locale.ENGLISH);
+                if (currentName.equals("content-type")
+                        || currentName.equals("content-transfer-encoding")) {
+                    current = new StringBuilder();
+                    current.append(new String(mLine, colon + 1, length - colon - 1, "US-ASCII"));
+                }
+            }
+        }
+    }
+
+    private void appendHeader(StringBuilder header) throws IOException {
+        if (header.length() < MAX_SIGNATURE_LENGTH) {
+            header.append(new String(mLine, 0, mLineLength - terminatorLength(), "US-ASCII"));
+        }
+    }
+
+    private static void finishHeader(Headers headers, String name, StringBuilder value) {
+        if (value == null) {
+            return;
+        }
+        if (name.equals("content-type")) {
+            headers.contentType = value.toString().trim();
+        } else {
+            headers.transferEncoding = value.toString().trim();
+        }
+    }
+
+    /**
+     * Reads the next line, or the next part of a line longer than the line buffer
+     *
+     * @return false at the end of the input
+     */
+    private boolean readSegment() throws IOException {
+        mAtLineStart = mLineComplete;
+        mLineLength = 0;
+        mLineComplete = false;
+        while (mLineLength < MAX_LINE_LENGTH) {
+            if (mPosition == mLimit) {
+                mLimit = mIn.read(mBuffer);
+                mPosition = 0;
+                if (mLimit <= 0) {
+                    mLimit = 0;
+                    mEof = true;
+                    return mLineLength > 0;
+                }
+            }
+            byte b = mBuffer[mPosition++];
+            mLine[mLineLength++] = b;
+            if (b == '\n') {
+                mLineComplete = true;
+                return true;
+            }
+        }
+        // keep a trailing CR together with its LF
+        if (mLine[mLineLength - 1] == '\r') {
+            mLineLength--;
+            mPosition--;
+        }
+        return true;
+    }
+}
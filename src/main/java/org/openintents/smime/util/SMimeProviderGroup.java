@@ -0,0 +1,323 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.openintents.smime.SmimeError;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes requests across several providers.
+ * <p/>
+ * Read-only operations (verify, decrypt metadata) go to the healthy provider with the lowest
+ * observed latency. Certificate lookups are not among them: certificate ids are only meaningful
+ * for the keystore of the provider that returned them, and encryption always uses the first
+ * provider. Each provider has a circuit breaker: after consecutive failures
+ * it is skipped for a cool-down period, then a single trial request decides whether it is used
+ * again. Only failures to reach the provider count, i.e., exceptions such as a dead binder and
+ * CLIENT_SIDE_* errors, errors returned by the provider are answers. Requests without streams
+ * can optionally be hedged: if the first provider has not answered within the hedge delay, the
+ * same request is sent to a second provider and the first answer wins. At most
+ * {@link #MAX_HEDGE_THREADS} requests are hedged at a time, further ones are sent to a single
+ * provider. All other operations always go to the first provider of the group.
+ * <p/>
+ * The methods of this class block, do not call them on the main thread!
+ */
+public class SMimeProviderGroup {
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+    public static final int MAX_HEDGE_THREADS = 8;
+
+    private static final HashSet<String> READ_ONLY_ACTIONS = new HashSet<>(Arrays.asList(
+            SMimeApi.ACTION_VERIFY,
+            SMimeApi.ACTION_DECRYPT_METADATA
+    ));
+
+    // weight of a new latency sample in the moving average
+    private static final double LATENCY_ALPHA = 0.2;
+
+    // outcomes of Provider.tryAcquire()
+    private static final int PERMIT_NONE = 0;
+    private static final int PERMIT_NORMAL = 1;
+    private static final int PERMIT_TRIAL = 2;
+
+    private final ArrayList<Provider> mProviders = new ArrayList<>();
+    private final ExecutorService mHedgeExecutor;
+    private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long mOpenDuration = DEFAULT_OPEN_DURATION;
+    private long mHedgeDelay;
+
+    /**
+     * @param apis one SMimeApi per provider, the first one is the primary provider
+     */
+    public SMimeProviderGroup(List<SMimeApi> apis) {
+        if (apis.isEmpty()) {
+            throw new IllegalArgumentException("at least one provider required");
+        }
+        for (SMimeApi api : apis) {
+            mProviders.add(new Provider(api));
+        }
+        // no queue, a full pool rejects and the request is not hedged
+        mHedgeExecutor = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS,
+                30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.mFailureThreshold = failureThreshold;
+    }
+
+    public void setOpenDuration(long openDuration) {
+        this.mOpenDuration = openDuration;
+    }
+
+    /**
+     * Enables hedged requests for read-only operations without streams
+     *
+     * @param hedgeDelay milliseconds after which a second provider is asked, 0 disables hedging
+     */
+    public void setHedgeDelay(long hedgeDelay) {
+        this.mHedgeDelay = hedgeDelay;
+    }
+
+    public static boolean isReadOnly(Intent data) {
+        return READ_ONLY_ACTIONS.contains(data.getAction());
+    }
+
+    public Intent executeApi(Intent data, InputStream is, OutputStream os) {
+        long now = SystemClock.elapsedRealtime();
+        if (!isReadOnly(data)) {
+            // always sent to the primary provider, even if its circuit breaker is open
+            Provider primary = mProviders.get(0);
+            return execute(primary, primary.tryAcquire(now), data, is, os);
+        }
+
+        List<Provider> candidates = selectProviders();
+        for (int i = 0; i < candidates.size(); i++) {
+            Provider provider = candidates.get(i);
+            // another caller might have taken the trial request meanwhile
+            int permit = provider.tryAcquire(now);
+            if (permit == PERMIT_NONE) {
+                continue;
+            }
+            if (mHedgeDelay > 0 && i + 1 < candidates.size() && is == null && os == null) {
+                return executeHedged(provider, permit,
+                        candidates.subList(i + 1, candidates.size()), data);
+            }
+            return execute(provider, permit, data, is, os);
+        }
+
+        Intent result = new Intent();
+        result.putExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR);
+        result.putExtra(SMimeApi.RESULT_ERROR,
+                new SmimeError(SmimeError.CLIENT_SIDE_ERROR, "all providers failing"));
+        return result;
+    }
+
+    /**
+     * Returns the providers which may currently be asked, fastest first. They still have to be
+     * acquired with {@link Provider#tryAcquire(long)}.
+     */
+    private List<Provider> selectProviders() {
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<Provider> candidates = new ArrayList<>();
+        for (Provider provider : mProviders) {
+            if (provider.isAvailable(now)) {
+                // insertion sort by latency, groups are small
+                int i = 0;
+                while (i < candidates.size()
+                        && candidates.get(i).getLatency() <= provider.getLatency()) {
+                    i++;
+                }
+                candidates.add(i, provider);
+            }
+        }
+        return candidates;
+    }
+
+    private Intent execute(Provider provider, int permit, Intent data, InputStream is,
+                           OutputStream os) {
+        long start = SystemClock.elapsedRealtime();
+        Intent result = null;
+        try {
+            result = provider.api.executeApi(data, is, os);
+            return result;
+        } finally {
+            provider.onResult(permit, result, SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    private Intent executeHedged(final Provider first, final int firstPermit,
+                                 List<Provider> others, Intent data) {
+        final LinkedBlockingQueue<Intent> results = new LinkedBlockingQueue<>();
+        final Intent firstData = new Intent(data);
+        final Intent secondData = new Intent(data);
+
+        try {
+            mHedgeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    results.add(execute(first, firstPermit, firstData, null, null));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return execute(first, firstPermit, data, null, null);
+        }
+
+        try {
+            Intent result = results.poll(mHedgeDelay, TimeUnit.MILLISECONDS);
+            if (result != null && !isError(result)) {
+                return result;
+            }
+
+            Provider second = null;
+            int secondPermit = PERMIT_NONE;
+            long now = SystemClock.elapsedRealtime();
+            for (Provider provider : others) {
+                secondPermit = provider.tryAcquire(now);
+                if (secondPermit != PERMIT_NONE) {
+                    second = provider;
+                    break;
+                }
+            }
+            if (second == null) {
+                return (result != null) ? result : results.take();
+            }
+
+            final Provider hedge = second;
+            final int hedgePermit = secondPermit;
+            try {
+                mHedgeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        results.add(execute(hedge, hedgePermit, secondData, null, null));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                hedge.release(hedgePermit);
+                return (result != null) ? result : results.take();
+            }
+            Log.d(SMimeApi.TAG, "hedging request to second provider");
+
+            // first non-error answer wins, otherwise the last error is returned
+            int pending = (result == null) ? 2 : 1;
+            while (pending > 0) {
+                result = results.take();
+                pending--;
+                if (!isError(result)) {
+                    return result;
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Intent result = new Intent();
+            result.putExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR);
+            result.putExtra(SMimeApi.RESULT_ERROR,
+                    new SmimeError(SmimeError.CLIENT_SIDE_ERROR, "interrupted"));
+            return result;
+        }
+    }
+
+    private static boolean isError(Intent result) {
+        return result.getIntExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR)
+                == SMimeApi.RESULT_CODE_ERROR;
+    }
+
+    /**
+     * Returns true if the provider could not be asked, e.g., because of a RemoteException or a
+     * dead binder. Errors returned by the provider, e.g., NO_USER_IDS, are answers.
+     */
+    private static boolean isFailure(Intent result) {
+        if (result == null || result.hasExtra(SMimeApi.EXTRA_RESULT_ERROR)) {
+            // SMimeApi reports exceptions of the call this way
+            return true;
+        }
+        if (!isError(result)) {
+            return false;
+        }
+        SmimeError error = result.getParcelableExtra(SMimeApi.RESULT_ERROR);
+        // CLIENT_SIDE_* errors have negative ids
+        return error != null && error.getErrorId() < 0;
+    }
+
+    /**
+     * Provider with its latency estimate and circuit breaker
+     */
+    private class Provider {
+        final SMimeApi api;
+        private double mLatency;
+        private int mConsecutiveFailures;
+        private long mOpenUntil;
+        private boolean mTrialInFlight;
+
+        Provider(SMimeApi api) {
+            this.api = api;
+        }
+
+        synchronized double getLatency() {
+            return mLatency;
+        }
+
+        /**
+         * Closed: always. Open: never until the cool-down is over, then for one trial request.
+         */
+        synchronized boolean isAvailable(long now) {
+            return mConsecutiveFailures < mFailureThreshold
+                    || (now >= mOpenUntil && !mTrialInFlight);
+        }
+
+        /**
+         * Checks availability and claims the trial request in one step, so only one caller gets it
+         *
+         * @return PERMIT_NONE if the provider must not be asked
+         */
+        synchronized int tryAcquire(long now) {
+            if (mConsecutiveFailures < mFailureThreshold) {
+                return PERMIT_NORMAL;
+            }
+            if (now >= mOpenUntil && !mTrialInFlight) {
+                mTrialInFlight = true;
+                return PERMIT_TRIAL;
+            }
+            return PERMIT_NONE;
+        }
+
+        /**
+         * Gives back a permit which was not used for a request
+         */
+        synchronized void release(int permit) {
+            if (permit == PERMIT_TRIAL) {
+                mTrialInFlight = false;
+            }
+        }
+
+        synchronized void onResult(int permit, Intent result, long latency) {
+            if (permit == PERMIT_TRIAL) {
+                mTrialInFlight = false;
+            }
+            if (isFailure(result)) {
+                mConsecutiveFailures++;
+                if (mConsecutiveFailures >= mFailureThreshold) {
+                    mOpenUntil = SystemClock.elapsedRealtime() + mOpenDuration;
+                }
+            } else {
+                mConsecutiveFailures = 0;
+                mLatency = (mLatency == 0) ? latency
+                        : (1 - LATENCY_ALPHA) * mLatency + LATENCY_ALPHA * latency;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.openintents.smime.util;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide cache of the installed S/MIME providers.
+ * <p/>
+ * Providers are discovered with a single PackageManager query the first time they are needed and
+ * are only discovered again after a package has been added, removed or replaced. Labels and icons
+ * are not loaded during discovery, use {@link #loadProviderDetails(OnProviderDetailsLoaded)} to
+ * load them in the background.
+ */
+public class SMimeProviderRegistry {
+
+    // callback interfaces
+    public interface OnProvidersChangedListener {
+        void onProvidersChanged();
+    }
+
+    public interface OnProviderDetailsLoaded {
+        void onProviderDetailsLoaded(List<SmimeProvider> providers);
+    }
+
+    private static SMimeProviderRegistry sInstance;
+
+    private final Context mApplicationContext;
+    private final CopyOnWriteArrayList<OnProvidersChangedListener> mListeners =
+            new CopyOnWriteArrayList<>();
+
+    private List<SmimeProvider> mProviders;
+
+    public static synchronized SMimeProviderRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SMimeProviderRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SMimeProviderRegistry(Context applicationContext) {
+        this.mApplicationContext = applicationContext;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        mApplicationContext.registerReceiver(mPackageReceiver, filter);
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    /**
+     * Returns all installed S/MIME providers. Only the first call after a package change
+     * queries the PackageManager.
+     */
+    public synchronized List<SmimeProvider> getProviders() {
+        if (mProviders == null) {
+            mProviders = Collections.unmodifiableList(discoverProviders());
+        }
+        return mProviders;
+    }
+
+    public SmimeProvider getProvider(String packageName) {
+        for (SmimeProvider provider : getProviders()) {
+            if (provider.packageName.equals(packageName)) {
+                return provider;
+            }
+        }
+        return null;
+    }
+
+    public boolean hasProviders() {
+        return !getProviders().isEmpty();
+    }
+
+    /**
+     * Forget the discovered providers, they are discovered again on next access.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mProviders = null;
+        }
+        for (OnProvidersChangedListener listener : mListeners) {
+            listener.onProvidersChanged();
+        }
+    }
+
+    public void addOnProvidersChangedListener(OnProvidersChangedListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeOnProvidersChangedListener(OnProvidersChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Loads labels and icons of all providers in the background. The callback is executed on the
+     * main thread, immediately if all details are already loaded.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void loadProviderDetails(final OnProviderDetailsLoaded callback) {
+        final List<SmimeProvider> providers = getProviders();
+
+        boolean allLoaded = true;
+        for (SmimeProvider provider : providers) {
+            allLoaded &= provider.isDetailsLoaded();
+        }
+        if (allLoaded) {
+            callback.onProviderDetailsLoaded(providers);
+            return;
+        }
+
+        AsyncTask<Void, Void, Void> task = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... unused) {
+                PackageManager packageManager = mApplicationContext.getPackageManager();
+                for (SmimeProvider provider : providers) {
+                    provider.loadDetails(packageManager);
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void unused) {
+                callback.onProviderDetailsLoaded(providers);
+            }
+        };
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Void[]) null);
+        } else {
+            task.execute((Void[]) null);
+        }
+    }
+
+    private List<SmimeProvider> discoverProviders() {
+        ArrayList<SmimeProvider> providers = new ArrayList<>();
+
+        Intent intent = new Intent(SMimeApi.SERVICE_INTENT);
+        List<ResolveInfo> resInfo = mApplicationContext.getPackageManager()
+                .queryIntentServices(intent, 0);
+        if (resInfo != null) {
+            for (ResolveInfo resolveInfo : resInfo) {
+                if (resolveInfo.serviceInfo == null)
+                    continue;
+
+                providers.add(new SmimeProvider(resolveInfo.serviceInfo));
+            }
+        }
+
+        return providers;
+    }
+
+    public static class SmimeProvider {
+        public final String packageName;
+        private final ServiceInfo serviceInfo;
+        private volatile CharSequence label;
+        private volatile Drawable icon;
+
+        private SmimeProvider(ServiceInfo serviceInfo) {
+            this.packageName = serviceInfo.packageName;
+            this.serviceInfo = serviceInfo;
+        }
+
+        public boolean isDetailsLoaded() {
+            return label != null;
+        }
+
+        /**
+         * Returns the label of the provider, or its package name until details have been loaded
+         */
+        public CharSequence getLabel() {
+            return (label != null) ? label : packageName;
+        }
+
+        /**
+         * Returns the icon of the provider, or null until details have been loaded
+         */
+        public Drawable getIcon() {
+            return icon;
+        }
+
+        private void loadDetails(PackageManager packageManager) {
+            if (label == null) {
+                icon = serviceInfo.loadIcon(packageManager);
+                label = serviceInfo.loadLabel(packageManager);
+            }
+        }
+    }
+}
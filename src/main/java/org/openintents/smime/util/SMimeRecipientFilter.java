@@ -0,0 +1,129 @@
+package org.openintents.smime.util;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Bloom filter over the email addresses a provider has certificates for, exchanged with
+ * ACTION_GET_RECIPIENT_FILTER.
+ * <p/>
+ * {@link #mightContain(String)} never returns false for an added address, so a negative answer
+ * means the provider definitely cannot encrypt to it. Providers build the filter with
+ * {@link #add(String)} and return {@link #toByteArray()} in RESULT_RECIPIENT_FILTER.
+ * <p/>
+ * Format: byte version (1), byte number of hash functions k, int (big endian) number of bits m,
+ * followed by the m bits, least significant bit first. Addresses are normalized with
+ * {@link SMimeRecipientResolver#normalize(String)} and hashed with 64 bit FNV-1a over their
+ * UTF-8 bytes. Bit i of k is (h1 + i * h2) mod m, with h1 and h2 the low and high 32 bits of
+ * the hash, both taken as unsigned.
+ */
+public class SMimeRecipientFilter {
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int mHashCount;
+    private final int mBitCount;
+    private final byte[] mBits;
+
+    /**
+     * Creates an empty filter sized for the expected number of addresses
+     *
+     * @param expectedEntries   number of addresses which will be added
+     * @param falsePositiveRate e.g., 0.01
+     */
+    public SMimeRecipientFilter(int expectedEntries, double falsePositiveRate) {
+        int n = Math.max(1, expectedEntries);
+        double ln2 = Math.log(2);
+        int bitCount = (int) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+        bitCount = Math.max(8, bitCount);
+
+        this.mBitCount = bitCount;
+        this.mHashCount = Math.max(1, Math.min(255, (int) Math.round((double) bitCount / n * ln2)));
+        this.mBits = new byte[(bitCount + 7) / 8];
+    }
+
+    private SMimeRecipientFilter(int hashCount, int bitCount, byte[] bits) {
+        this.mHashCount = hashCount;
+        this.mBitCount = bitCount;
+        this.mBits = bits;
+    }
+
+    public static SMimeRecipientFilter fromByteArray(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE || data[0] != VERSION) {
+            throw new IllegalArgumentException("unsupported recipient filter");
+        }
+        int hashCount = data[1] & 0xff;
+        int bitCount = ((data[2] & 0xff) << 24) | ((data[3] & 0xff) << 16)
+                | ((data[4] & 0xff) << 8) | (data[5] & 0xff);
+        if (hashCount == 0 || bitCount <= 0 || data.length != HEADER_SIZE + (bitCount + 7) / 8) {
+            throw new IllegalArgumentException("corrupt recipient filter");
+        }
+        byte[] bits = new byte[data.length - HEADER_SIZE];
+        System.arraycopy(data, HEADER_SIZE, bits, 0, bits.length);
+        return new SMimeRecipientFilter(hashCount, bitCount, bits);
+    }
+
+    public byte[] toByteArray() {
+        byte[] data = new byte[HEADER_SIZE + mBits.length];
+        data[0] = VERSION;
+        data[1] = (byte) mHashCount;
+        data[2] = (byte) (mBitCount >>> 24);
+        data[3] = (byte) (mBitCount >>> 16);
+        data[4] = (byte) (mBitCount >>> 8);
+        data[5] = (byte) mBitCount;
+        System.arraycopy(mBits, 0, data, HEADER_SIZE, mBits.length);
+        return data;
+    }
+
+    public void add(String address) {
+        long hash = hash(address);
+        long h1 = hash & 0xffffffffL;
+        long h2 = hash >>> 32;
+        for (int i = 0; i < mHashCount; i++) {
+            int bit = (int) ((h1 + i * h2) % mBitCount);
+            mBits[bit >>> 3] |= 1 << (bit & 7);
+        }
+    }
+
+    public boolean mightContain(String address) {
+        long hash = hash(address);
+        long h1 = hash & 0xffffffffL;
+        long h2 = hash >>> 32;
+        for (int i = 0; i < mHashCount; i++) {
+            int bit = (int) ((h1 + i * h2) % mBitCount);
+            if ((mBits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the filter might contain all given addresses, null addresses are skipped
+     */
+    public boolean mightContainAll(String[] addresses) {
+        for (String address : addresses) {
+            if (address != null && !mightContain(address)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(String address) {
+        byte[] bytes;
+        try {
+            bytes = SMimeRecipientResolver.normalize(address).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : bytes) {
+            hash ^= (b & 0xff);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,248 @@
+package org.openintents.smime.util;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+
+import org.openintents.smime.SmimeError;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves certificate ids for a large number of recipients.
+ * <p/>
+ * Addresses are normalized and deduplicated, then resolved in chunks that run in parallel, with
+ * one ACTION_GET_CERTIFICATE_IDS call per address. RESULT_CERTIFICATE_IDS of a call with several
+ * user ids is unordered, so it cannot tell which certificate belongs to which address. In
+ * contrast to a single call with all EXTRA_USER_IDS, one ambiguous address does not turn the whole
+ * request into a user interaction: the result lists resolved, missing and ambiguous addresses
+ * separately, and only the ambiguous ones carry a PendingIntent.
+ * <p/>
+ * {@link #resolve(Collection)} blocks, do not call it on the main thread!
+ */
+public class SMimeRecipientResolver {
+    public static final int DEFAULT_CHUNK_SIZE = 16;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private final SMimeApi mApi;
+    private final Executor mExecutor;
+    private final int mChunkSize;
+
+    public SMimeRecipientResolver(SMimeApi api) {
+        this(api, createDefaultExecutor(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param executor  executes the chunks, its parallelism limits the concurrent provider calls
+     * @param chunkSize number of addresses resolved one after the other by one task
+     */
+    public SMimeRecipientResolver(SMimeApi api, Executor executor, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.mApi = api;
+        this.mExecutor = executor;
+        this.mChunkSize = chunkSize;
+    }
+
+    private static Executor createDefaultExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_PARALLELISM, DEFAULT_PARALLELISM,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Normalizes an address for lookup, e.g., " Alice <Alice@Example.org>" -> "alice@example.org"
+     */
+    public static String normalize(String address) {
+        String normalized = address.trim();
+        int start = normalized.lastIndexOf('<');
+        int end = normalized.lastIndexOf('>');
+        if (start >= 0 && end > start) {
+            normalized = normalized.substring(start + 1, end).trim();
+        }
+        return normalized.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Resolves all addresses. If the calling thread is interrupted, the remaining chunks are
+     * cancelled and the addresses resolved so far are returned.
+     */
+    public Result resolve(Collection<String> addresses) {
+        LinkedHashSet<String> unique = new LinkedHashSet<>();
+        for (String address : addresses) {
+            if (address != null) {
+                String normalized = normalize(address);
+                if (!normalized.isEmpty()) {
+                    unique.add(normalized);
+                }
+            }
+        }
+
+        final Result result = new Result();
+        ArrayList<String> all = new ArrayList<>(unique);
+        ArrayList<FutureTask<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < all.size(); i += mChunkSize) {
+            final List<String> chunk = all.subList(i, Math.min(i + mChunkSize, all.size()));
+            FutureTask<Void> task = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    resolveChunk(chunk, result);
+                }
+            }, null);
+            tasks.add(task);
+            mExecutor.execute(task);
+        }
+
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (FutureTask<Void> remaining : tasks) {
+                    remaining.cancel(true);
+                }
+                // running calls cannot be stopped and might still add to result
+                return result.copy();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return result;
+    }
+
+    private void resolveChunk(List<String> chunk, Result result) {
+        for (String address : chunk) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            resolveAddress(address, result);
+        }
+    }
+
+    private void resolveAddress(String address, Result result) {
+        Intent data = new Intent(SMimeApi.ACTION_GET_CERTIFICATE_IDS);
+        data.putExtra(SMimeApi.EXTRA_USER_IDS, new String[]{address});
+        Intent response = mApi.executeApi(data, (InputStream) null, null);
+
+        switch (response.getIntExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR)) {
+            case SMimeApi.RESULT_CODE_SUCCESS: {
+                long[] certificateIds = response.getLongArrayExtra(SMimeApi.RESULT_CERTIFICATE_IDS);
+                if (certificateIds != null && certificateIds.length > 0) {
+                    result.putResolved(address, certificateIds);
+                } else {
+                    result.putMissing(address);
+                }
+                break;
+            }
+            case SMimeApi.RESULT_CODE_USER_INTERACTION_REQUIRED: {
+                PendingIntent pi = response.getParcelableExtra(SMimeApi.RESULT_INTENT);
+                result.putAmbiguous(address, pi);
+                break;
+            }
+            default: {
+                SmimeError error = response.getParcelableExtra(SMimeApi.RESULT_ERROR);
+                if (error != null && (error.getErrorId() == SmimeError.NO_USER_IDS
+                        || error.getErrorId() == SmimeError.OPPORTUNISTIC_MISSING_KEYS)) {
+                    result.putMissing(address);
+                } else {
+                    result.putFailed(address, error);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Per-address outcome of {@link #resolve(Collection)}, keyed by normalized address
+     */
+    public static class Result {
+        private final HashMap<String, long[]> mResolved = new HashMap<>();
+        private final ArrayList<String> mMissing = new ArrayList<>();
+        private final HashMap<String, PendingIntent> mAmbiguous = new HashMap<>();
+        private final HashMap<String, SmimeError> mFailed = new HashMap<>();
+
+        synchronized Result copy() {
+            Result copy = new Result();
+            copy.mResolved.putAll(mResolved);
+            copy.mMissing.addAll(mMissing);
+            copy.mAmbiguous.putAll(mAmbiguous);
+            copy.mFailed.putAll(mFailed);
+            return copy;
+        }
+
+        synchronized void putResolved(String address, long[] certificateIds) {
+            mResolved.put(address, certificateIds);
+        }
+
+        synchronized void putMissing(String address) {
+            mMissing.add(address);
+        }
+
+        synchronized void putAmbiguous(String address, PendingIntent pi) {
+            mAmbiguous.put(address, pi);
+        }
+
+        synchronized void putFailed(String address, SmimeError error) {
+            mFailed.put(address, error);
+        }
+
+        public synchronized Map<String, long[]> getResolved() {
+            return Collections.unmodifiableMap(mResolved);
+        }
+
+        public synchronized List<String> getMissing() {
+            return Collections.unmodifiableList(mMissing);
+        }
+
+        /**
+         * Addresses matching more than one certificate, the PendingIntent lets the user choose
+         */
+        public synchronized Map<String, PendingIntent> getAmbiguous() {
+            return Collections.unmodifiableMap(mAmbiguous);
+        }
+
+        /**
+         * Addresses which could not be resolved because of an error, the SmimeError might be null
+         */
+        public synchronized Map<String, SmimeError> getFailed() {
+            return Collections.unmodifiableMap(mFailed);
+        }
+
+        public synchronized boolean isComplete() {
+            return mMissing.isEmpty() && mAmbiguous.isEmpty() && mFailed.isEmpty();
+        }
+
+        /**
+         * Returns the certificate ids of all resolved addresses, e.g., for EXTRA_CERTIFICATE_IDS
+         */
+        public synchronized long[] getCertificateIds() {
+            LinkedHashSet<Long> ids = new LinkedHashSet<>();
+            for (long[] certificateIds : mResolved.values()) {
+                for (long certificateId : certificateIds) {
+                    ids.add(certificateId);
+                }
+            }
+            long[] out = new long[ids.size()];
+            int i = 0;
+            for (Long id : ids) {
+                out[i++] = id;
+            }
+            return out;
+        }
+    }
+}
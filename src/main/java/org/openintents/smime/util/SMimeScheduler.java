@@ -0,0 +1,161 @@
+package org.openintents.smime.util;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs operations by priority class with bounded concurrency, see
+ * {@link SMimeApi#setScheduler(SMimeScheduler)}.
+ * <p/>
+ * Whenever a slot becomes free, the oldest operation of the highest priority class which has not
+ * reached its concurrency limit is started, so a newly opened message overtakes all queued
+ * prefetch and background operations. Operations already running are never interrupted, the
+ * overall limit and the per-class limits decide how many slots background work may occupy.
+ * The same instance can be shared by all SMimeApi objects of one provider.
+ */
+public class SMimeScheduler {
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int PRIORITY_COUNT = 3;
+
+    private final int mMaxConcurrency;
+    private final int[] mClassLimits = new int[PRIORITY_COUNT];
+    private final PriorityClass[] mClasses = new PriorityClass[PRIORITY_COUNT];
+    private final ThreadPoolExecutor mExecutor;
+    private int mRunning;
+
+    /**
+     * Interactive operations may use all slots, prefetch and background operations
+     * half of them, but at least one each
+     */
+    public SMimeScheduler(int maxConcurrency) {
+        this(maxConcurrency, maxConcurrency,
+                Math.max(1, maxConcurrency / 2), Math.max(1, maxConcurrency / 2));
+    }
+
+    public SMimeScheduler(int maxConcurrency, int interactiveLimit, int prefetchLimit,
+                          int backgroundLimit) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        this.mMaxConcurrency = maxConcurrency;
+        mClassLimits[PRIORITY_INTERACTIVE] = interactiveLimit;
+        mClassLimits[PRIORITY_PREFETCH] = prefetchLimit;
+        mClassLimits[PRIORITY_BACKGROUND] = backgroundLimit;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mClasses[i] = new PriorityClass();
+        }
+        // concurrency is bounded by the scheduler itself
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    }
+
+    public void execute(Runnable operation, int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("unknown priority " + priority);
+        }
+        synchronized (this) {
+            mClasses[priority].queue.addLast(new Operation(operation, priority));
+        }
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (true) {
+            final Operation next;
+            synchronized (this) {
+                next = pollNext();
+                if (next == null) {
+                    return;
+                }
+                PriorityClass priorityClass = mClasses[next.priority];
+                priorityClass.running++;
+                priorityClass.totalWaitTime += SystemClock.elapsedRealtime() - next.enqueueTime;
+                priorityClass.started++;
+                mRunning++;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(next.priority == PRIORITY_INTERACTIVE
+                            ? Process.THREAD_PRIORITY_DEFAULT : Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        next.operation.run();
+                    } finally {
+                        synchronized (SMimeScheduler.this) {
+                            mClasses[next.priority].running--;
+                            mRunning--;
+                        }
+                        dispatch();
+                    }
+                }
+            });
+        }
+    }
+
+    private Operation pollNext() {
+        if (mRunning >= mMaxConcurrency) {
+            return null;
+        }
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            PriorityClass priorityClass = mClasses[i];
+            if (!priorityClass.queue.isEmpty() && priorityClass.running < mClassLimits[i]) {
+                return priorityClass.queue.pollFirst();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of operations of the given class waiting for a slot
+     */
+    public synchronized int getQueueDepth(int priority) {
+        return mClasses[priority].queue.size();
+    }
+
+    public synchronized int getRunning(int priority) {
+        return mClasses[priority].running;
+    }
+
+    /**
+     * Average milliseconds operations of the given class waited before they were started
+     */
+    public synchronized double getAverageWaitTime(int priority) {
+        PriorityClass priorityClass = mClasses[priority];
+        return (priorityClass.started > 0)
+                ? (double) priorityClass.totalWaitTime / priorityClass.started : 0;
+    }
+
+    /**
+     * Milliseconds the oldest queued operation of the given class has been waiting, 0 if none
+     */
+    public synchronized long getOldestWaitTime(int priority) {
+        Operation oldest = mClasses[priority].queue.peekFirst();
+        return (oldest != null) ? SystemClock.elapsedRealtime() - oldest.enqueueTime : 0;
+    }
+
+    private static class PriorityClass {
+        final ArrayDeque<Operation> queue = new ArrayDeque<>();
+        int running;
+        long started;
+        long totalWaitTime;
+    }
+
+    private static class Operation {
+        final Runnable operation;
+        final int priority;
+        final long enqueueTime = SystemClock.elapsedRealtime();
+
+        Operation(Runnable operation, int priority) {
+            this.operation = operation;
+            this.priority = priority;
+        }
+    }
+}
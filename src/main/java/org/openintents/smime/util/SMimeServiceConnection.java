@@ -5,10 +5,16 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
 import org.openintents.smime.ISMimeService;
 
+import java.util.ArrayList;
+
 public class SMimeServiceConnection {
 
     // callback interface
@@ -18,13 +24,31 @@ public class SMimeServiceConnection {
         public void onError(Exception e);
     }
 
+    // queued work, executed on the main thread as soon as the service is bound
+    public interface ServiceTask {
+        public void run(ISMimeService service);
+
+        // called on the main thread instead of run() if binding failed, the task is dropped
+        public void onError(Exception e);
+    }
+
+    private static final long RECONNECT_DELAY_MIN = 1000;
+    private static final long RECONNECT_DELAY_MAX = 60 * 1000;
+
     private Context mApplicationContext;
 
-    private ISMimeService mService;
+    private volatile ISMimeService mService;
     private String mProviderPackageName;
 
     private OnBound mOnBoundListener;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<ServiceTask> mPendingTasks = new ArrayList<>();
+    private boolean mBindRequested;
+    private boolean mBound;
+    private Exception mBindError;
+    private long mReconnectDelay = RECONNECT_DELAY_MIN;
+
     /**
      * Create new connection
      *
@@ -55,44 +79,206 @@ public class SMimeServiceConnection {
         return mService;
     }
 
+    public String getProviderPackageName() {
+        return mProviderPackageName;
+    }
+
     public boolean isBound() {
         return (mService != null);
     }
 
+    /**
+     * Blocks until the service is bound, e.g., while reconnecting after the provider died.
+     * Must not be called on the main thread, as binding completes there: on the main thread the
+     * current service is returned without waiting.
+     *
+     * @return the service, or null if it was not bound within the timeout
+     */
+    public ISMimeService awaitService(long timeoutMillis) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(SMimeApi.TAG, "awaitService() called on main thread, not waiting!");
+            return mService;
+        }
+
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        synchronized (this) {
+            // a dead binder is only replaced after onServiceDisconnected, wait for that as well
+            while (mService == null || !mService.asBinder().isBinderAlive()) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mService;
+        }
+    }
+
+    /**
+     * Runs the task on the main thread as soon as the service is bound, immediately if it
+     * already is. Tasks issued while (re)connecting are queued instead of failing. If binding
+     * fails, queued tasks are dropped and their {@link ServiceTask#onError(Exception)} is called,
+     * as is the one of tasks issued until the next bind attempt.
+     */
+    public void runWhenBound(final ServiceTask task) {
+        synchronized (this) {
+            if (mService == null) {
+                if (mBindError == null) {
+                    mPendingTasks.add(task);
+                    return;
+                }
+                final Exception bindError = mBindError;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.onError(bindError);
+                    }
+                });
+                return;
+            }
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ISMimeService service = mService;
+                if (service != null) {
+                    task.run(service);
+                } else {
+                    synchronized (SMimeServiceConnection.this) {
+                        mPendingTasks.add(task);
+                    }
+                }
+            }
+        });
+    }
+
     private ServiceConnection mServiceConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName name, IBinder service) {
-            mService = ISMimeService.Stub.asInterface(service);
+            ISMimeService smimeService = ISMimeService.Stub.asInterface(service);
+            ArrayList<ServiceTask> pendingTasks;
+            synchronized (SMimeServiceConnection.this) {
+                mService = smimeService;
+                mReconnectDelay = RECONNECT_DELAY_MIN;
+                mHandler.removeCallbacks(mReconnectRunnable);
+                pendingTasks = new ArrayList<>(mPendingTasks);
+                mPendingTasks.clear();
+                SMimeServiceConnection.this.notifyAll();
+            }
             if (mOnBoundListener != null) {
-                mOnBoundListener.onBound(mService);
+                mOnBoundListener.onBound(smimeService);
+            }
+            for (ServiceTask task : pendingTasks) {
+                task.run(smimeService);
             }
         }
 
         public void onServiceDisconnected(ComponentName name) {
-            mService = null;
+            synchronized (SMimeServiceConnection.this) {
+                mService = null;
+            }
+            // the system usually restarts the provider and reconnects by itself,
+            // rebind if this does not happen in time
+            scheduleReconnect();
         }
     };
 
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SMimeServiceConnection.this) {
+                if (!mBindRequested || mService != null) {
+                    return;
+                }
+            }
+            Log.d(SMimeApi.TAG, "rebinding to " + mProviderPackageName);
+            if (mBound) {
+                mApplicationContext.unbindService(mServiceConnection);
+                mBound = false;
+            }
+            bind();
+            scheduleReconnect();
+        }
+    };
+
+    private void scheduleReconnect() {
+        long delay;
+        synchronized (this) {
+            if (!mBindRequested) {
+                return;
+            }
+            delay = mReconnectDelay;
+            mReconnectDelay = Math.min(mReconnectDelay * 2, RECONNECT_DELAY_MAX);
+        }
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mHandler.postDelayed(mReconnectRunnable, delay);
+    }
+
+    private void bind() {
+        try {
+            Intent serviceIntent = new Intent(SMimeApi.SERVICE_INTENT);
+            // NOTE: setPackage is very important to restrict the intent to this provider only!
+            serviceIntent.setPackage(mProviderPackageName);
+            boolean connect = mApplicationContext.bindService(serviceIntent, mServiceConnection,
+                    Context.BIND_AUTO_CREATE);
+            if (!connect) {
+                throw new Exception("bindService() returned false!");
+            }
+            synchronized (this) {
+                mBindError = null;
+            }
+            mBound = true;
+        } catch (Exception e) {
+            failPendingTasks(e);
+            if (mOnBoundListener != null) {
+                mOnBoundListener.onError(e);
+            }
+        }
+    }
+
+    /**
+     * Drops all queued tasks and calls their error callback, otherwise they would wait forever
+     * and keep whatever they hold, e.g., a registry handle
+     */
+    private void failPendingTasks(final Exception e) {
+        final ArrayList<ServiceTask> failedTasks;
+        synchronized (this) {
+            mBindError = e;
+            failedTasks = new ArrayList<>(mPendingTasks);
+            mPendingTasks.clear();
+        }
+        if (failedTasks.isEmpty()) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ServiceTask task : failedTasks) {
+                    task.onError(e);
+                }
+            }
+        });
+    }
+
     /**
      * If not already bound, bind to service!
+     * After the provider died, the connection is re-established automatically
+     * until {@link #unbindFromService()} is called.
      *
      * @return
      */
     public void bindToService() {
+        synchronized (this) {
+            mBindRequested = true;
+        }
         // if not already bound...
         if (mService == null) {
-            try {
-                Intent serviceIntent = new Intent(SMimeApi.SERVICE_INTENT);
-                // NOTE: setPackage is very important to restrict the intent to this provider only!
-                serviceIntent.setPackage(mProviderPackageName);
-                boolean connect = mApplicationContext.bindService(serviceIntent, mServiceConnection,
-                        Context.BIND_AUTO_CREATE);
-                if (!connect) {
-                    throw new Exception("bindService() returned false!");
-                }
-            } catch (Exception e) {
-                if (mOnBoundListener != null) {
-                    mOnBoundListener.onError(e);
-                }
+            if (!mBound) {
+                bind();
             }
         } else {
             // already bound, but also inform client about it with callback
@@ -103,7 +289,20 @@ public class SMimeServiceConnection {
     }
 
     public void unbindFromService() {
-        mApplicationContext.unbindService(mServiceConnection);
+        synchronized (this) {
+            mBindRequested = false;
+            mService = null;
+        }
+        failPendingTasks(new IllegalStateException("unbound from service"));
+        synchronized (this) {
+            // a later bindToService() starts over
+            mBindError = null;
+        }
+        mHandler.removeCallbacks(mReconnectRunnable);
+        if (mBound) {
+            mApplicationContext.unbindService(mServiceConnection);
+            mBound = false;
+        }
     }
 
 }
@@ -0,0 +1,124 @@
+package org.openintents.smime.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.openintents.smime.ISMimeService;
+
+import java.util.HashMap;
+
+/**
+ * Process-wide registry sharing one bound {@link SMimeServiceConnection} per provider package.
+ * <p/>
+ * Components {@link #acquire(String)} a handle instead of binding on their own and
+ * {@link Handle#release()} it when done. The connection is unbound once no handle has been
+ * held for the idle grace period, so short-lived users do not cause bind/unbind churn.
+ */
+public class SMimeServiceConnectionRegistry {
+    public static final long DEFAULT_IDLE_GRACE_PERIOD = 30 * 1000;
+
+    private static SMimeServiceConnectionRegistry sInstance;
+
+    private final Context mApplicationContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final HashMap<String, SharedConnection> mConnections = new HashMap<>();
+    private long mIdleGracePeriod = DEFAULT_IDLE_GRACE_PERIOD;
+
+    public static synchronized SMimeServiceConnectionRegistry getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SMimeServiceConnectionRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SMimeServiceConnectionRegistry(Context applicationContext) {
+        this.mApplicationContext = applicationContext;
+    }
+
+    public synchronized void setIdleGracePeriod(long idleGracePeriod) {
+        this.mIdleGracePeriod = idleGracePeriod;
+    }
+
+    /**
+     * Returns a handle to the shared connection of the given provider, binding it if necessary.
+     * Every handle must be released exactly once.
+     */
+    public synchronized Handle acquire(String providerPackageName) {
+        SharedConnection shared = mConnections.get(providerPackageName);
+        if (shared == null) {
+            shared = new SharedConnection(providerPackageName);
+            mConnections.put(providerPackageName, shared);
+        }
+        shared.refCount++;
+        mHandler.removeCallbacks(shared.unbindRunnable);
+        shared.connection.bindToService();
+        return new Handle(shared);
+    }
+
+    private synchronized void release(SharedConnection shared) {
+        shared.refCount--;
+        if (shared.refCount == 0) {
+            mHandler.postDelayed(shared.unbindRunnable, mIdleGracePeriod);
+        }
+    }
+
+    private synchronized void unbindIfIdle(SharedConnection shared) {
+        if (shared.refCount == 0 && mConnections.get(shared.packageName) == shared) {
+            mConnections.remove(shared.packageName);
+            shared.connection.unbindFromService();
+        }
+    }
+
+    private class SharedConnection {
+        final String packageName;
+        final SMimeServiceConnection connection;
+        int refCount;
+
+        final Runnable unbindRunnable = new Runnable() {
+            @Override
+            public void run() {
+                unbindIfIdle(SharedConnection.this);
+            }
+        };
+
+        SharedConnection(String packageName) {
+            this.packageName = packageName;
+            this.connection = new SMimeServiceConnection(mApplicationContext, packageName,
+                    new SMimeServiceConnection.OnBound() {
+                        @Override
+                        public void onBound(ISMimeService service) {
+                        }
+
+                        @Override
+                        public void onError(Exception e) {
+                            Log.e(SMimeApi.TAG, "exception on binding!", e);
+                        }
+                    });
+        }
+    }
+
+    public class Handle {
+        private final SharedConnection mShared;
+        private boolean mReleased;
+
+        private Handle(SharedConnection shared) {
+            this.mShared = shared;
+        }
+
+        public SMimeServiceConnection getConnection() {
+            return mShared.connection;
+        }
+
+        public void release() {
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            SMimeServiceConnectionRegistry.this.release(mShared);
+        }
+    }
+}
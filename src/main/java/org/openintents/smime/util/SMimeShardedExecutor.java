@@ -0,0 +1,256 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.openintents.smime.SmimeError;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bulk-processing mode spreading many operations over several shards, e.g., for the initial
+ * verification of a large signed mailbox.
+ * <p/>
+ * Every shard owns a worker thread, a queue and an SMimeApi. Binding the same provider several
+ * times returns the same binder, so shards usually share one connection and their parallelism
+ * comes from the binder thread pool of the provider; pass SMimeApi objects of separate provider
+ * sessions to spread the load further. Submitted operations are distributed round-robin, idle
+ * workers steal queued operations from the other shards and sleep without polling while no
+ * operation is queued anywhere. Per-shard throughput and queueing are available from
+ * {@link #getShardStats()}.
+ * <p/>
+ * Callbacks are executed on the worker threads, not on the main thread!
+ */
+public class SMimeShardedExecutor {
+    private final ArrayList<Shard> mShards = new ArrayList<>();
+    private final AtomicInteger mNextShard = new AtomicInteger();
+    private volatile boolean mShutdown;
+
+    // operations queued in all shards, idle workers wait on mIdleLock until it is positive
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final Object mIdleLock = new Object();
+
+    /**
+     * Creates one shard per available processor, all using the same SMimeApi
+     */
+    public SMimeShardedExecutor(SMimeApi api) {
+        this(Collections.nCopies(Runtime.getRuntime().availableProcessors(), api));
+    }
+
+    /**
+     * @param shardApis one SMimeApi per shard
+     */
+    public SMimeShardedExecutor(List<SMimeApi> shardApis) {
+        if (shardApis.isEmpty()) {
+            throw new IllegalArgumentException("at least one shard required");
+        }
+        for (int i = 0; i < shardApis.size(); i++) {
+            mShards.add(new Shard(i, shardApis.get(i)));
+        }
+        for (Shard shard : mShards) {
+            shard.start();
+        }
+    }
+
+    public void submit(Intent data, InputStream is, OutputStream os, SMimeApi.ISMimeCallback callback) {
+        if (mShutdown) {
+            throw new IllegalStateException("executor has been shut down");
+        }
+        int index = (mNextShard.getAndIncrement() & Integer.MAX_VALUE) % mShards.size();
+        mShards.get(index).mQueue.addLast(new Operation(data, is, os, callback));
+        mQueued.incrementAndGet();
+        // any worker can take it, the owner of the queue or a thief
+        synchronized (mIdleLock) {
+            mIdleLock.notify();
+        }
+    }
+
+    /**
+     * Stops all workers after the queued operations have been processed
+     */
+    public void shutdown() {
+        mShutdown = true;
+        synchronized (mIdleLock) {
+            mIdleLock.notifyAll();
+        }
+    }
+
+    public List<ShardStats> getShardStats() {
+        ArrayList<ShardStats> stats = new ArrayList<>();
+        for (Shard shard : mShards) {
+            stats.add(shard.getStats());
+        }
+        return stats;
+    }
+
+    private Operation steal(Shard thief) {
+        for (int i = 1; i < mShards.size(); i++) {
+            Shard victim = mShards.get((thief.mIndex + i) % mShards.size());
+            // steal from the tail, the owner takes from the head
+            Operation operation = victim.mQueue.pollLast();
+            if (operation != null) {
+                mQueued.decrementAndGet();
+                return operation;
+            }
+        }
+        return null;
+    }
+
+    private static class Operation {
+        final Intent data;
+        final InputStream is;
+        final OutputStream os;
+        final SMimeApi.ISMimeCallback callback;
+        final long submitTime = SystemClock.elapsedRealtime();
+
+        Operation(Intent data, InputStream is, OutputStream os, SMimeApi.ISMimeCallback callback) {
+            this.data = data;
+            this.is = is;
+            this.os = os;
+            this.callback = callback;
+        }
+    }
+
+    private class Shard extends Thread {
+        final int mIndex;
+        final SMimeApi mApi;
+        final LinkedBlockingDeque<Operation> mQueue = new LinkedBlockingDeque<>();
+
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        private long mProcessed;
+        private long mStolen;
+        private long mTotalWaitTime;
+        private long mTotalBusyTime;
+
+        Shard(int index, SMimeApi api) {
+            super("SMime Shard " + index);
+            this.mIndex = index;
+            this.mApi = api;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                boolean stolen = false;
+                Operation operation = mQueue.pollFirst();
+                if (operation != null) {
+                    mQueued.decrementAndGet();
+                } else {
+                    operation = steal(this);
+                    stolen = operation != null;
+                }
+                if (operation == null) {
+                    try {
+                        if (!awaitWork()) {
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                Intent result;
+                try {
+                    result = mApi.executeApi(operation.data, operation.is, operation.os);
+                } catch (RuntimeException e) {
+                    Log.e(SMimeApi.TAG, "Exception in sharded operation", e);
+                    result = new Intent();
+                    result.putExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR);
+                    result.putExtra(SMimeApi.RESULT_ERROR,
+                            new SmimeError(SmimeError.CLIENT_SIDE_ERROR, e.getMessage()));
+                }
+                long end = SystemClock.elapsedRealtime();
+
+                synchronized (this) {
+                    mProcessed++;
+                    if (stolen) {
+                        mStolen++;
+                    }
+                    mTotalWaitTime += start - operation.submitTime;
+                    mTotalBusyTime += end - start;
+                }
+
+                try {
+                    operation.callback.onReturn(result);
+                } catch (RuntimeException e) {
+                    // must not kill the worker, its queue would be stranded
+                    Log.e(SMimeApi.TAG, "Exception in callback of sharded operation", e);
+                }
+            }
+        }
+
+        /**
+         * Blocks until an operation is queued in any shard
+         *
+         * @return false if the executor has been shut down and all operations are done
+         */
+        private boolean awaitWork() throws InterruptedException {
+            synchronized (mIdleLock) {
+                while (mQueued.get() <= 0) {
+                    if (mShutdown) {
+                        return false;
+                    }
+                    mIdleLock.wait();
+                }
+            }
+            return true;
+        }
+
+        synchronized ShardStats getStats() {
+            return new ShardStats(mIndex, mQueue.size(), mProcessed, mStolen, mTotalWaitTime,
+                    mTotalBusyTime, SystemClock.elapsedRealtime() - mStartTime);
+        }
+    }
+
+    public static class ShardStats {
+        public final int shard;
+        public final int queueDepth;
+        public final long processed;
+        public final long stolen;
+        public final long totalWaitTime;
+        public final long totalBusyTime;
+        public final long uptime;
+
+        ShardStats(int shard, int queueDepth, long processed, long stolen, long totalWaitTime,
+                   long totalBusyTime, long uptime) {
+            this.shard = shard;
+            this.queueDepth = queueDepth;
+            this.processed = processed;
+            this.stolen = stolen;
+            this.totalWaitTime = totalWaitTime;
+            this.totalBusyTime = totalBusyTime;
+            this.uptime = uptime;
+        }
+
+        /**
+         * Operations per second since the shard was started
+         */
+        public double getThroughput() {
+            return (uptime > 0) ? processed * 1000.0 / uptime : 0;
+        }
+
+        /**
+         * Average milliseconds an operation was queued before it started
+         */
+        public double getAverageWaitTime() {
+            return (processed > 0) ? (double) totalWaitTime / processed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "shard " + shard + ": processed " + processed + " (stolen " + stolen
+                    + "), queued " + queueDepth + ", " + getThroughput() + " ops/s, avg wait "
+                    + getAverageWaitTime() + "ms";
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package org.openintents.smime.util;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Log;
+
+import org.openintents.smime.SmimeError;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces identical concurrent requests: while a request is in flight, further requests with
+ * the same key do not call the provider but wait for the first one and receive a copy of its
+ * result. Output of the shared call is fanned out to the OutputStreams of all waiting callers.
+ * <p/>
+ * Output written before a caller joined is kept in a backlog and replayed to it. Once the backlog
+ * exceeds its limit, new callers no longer join but start their own call. Joined callers write
+ * to their OutputStreams on their own threads, a slow caller which falls behind by more than twice
+ * the backlog limit gets an error instead of stalling the shared call. If the OutputStream of the
+ * caller executing the call fails, that caller gets an error, while the call continues for the
+ * joined callers.
+ * <p/>
+ * Set on an {@link SMimeApi} with {@link SMimeApi#setSingleFlight(SMimeSingleFlight)} and use
+ * {@link SMimeApi#executeApiCoalesced(Intent, String, InputStream, OutputStream)}.
+ */
+public class SMimeSingleFlight {
+
+    public interface Operation {
+        Intent execute(InputStream is, OutputStream os);
+    }
+
+    private final int mMaxBacklog;
+    private final HashMap<String, Call> mCalls = new HashMap<>();
+
+    /**
+     * @param maxBacklog maximum number of output bytes kept for callers joining late
+     */
+    public SMimeSingleFlight(int maxBacklog) {
+        this.mMaxBacklog = maxBacklog;
+    }
+
+    /**
+     * Derives a fingerprint from all extras of the given request, i.e., a digest of their parceled
+     * form. Only meaningful for requests without input.
+     *
+     * @return null if the extras cannot be parceled, e.g., because they contain file descriptors
+     */
+    public static String fingerprintOf(Intent data) {
+        byte[] parceled;
+        Parcel parcel = Parcel.obtain();
+        try {
+            Bundle extras = data.getExtras();
+            if (extras != null) {
+                ArrayList<String> keys = new ArrayList<>(extras.keySet());
+                Collections.sort(keys);
+                for (String key : keys) {
+                    parcel.writeString(key);
+                    parcel.writeValue(extras.get(key));
+                }
+            }
+            parceled = parcel.marshall();
+        } catch (RuntimeException e) {
+            // file descriptors and binders cannot be marshalled
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+
+        // hash it, extras might contain passphrases
+        return SMimeUtils.toHex(SMimeEncryptionCache.createContentDigest().digest(parceled));
+    }
+
+    /**
+     * Executes the operation, or waits for an identical one which is already in flight.
+     * InputStream and OutputStream are always closed, also for callers sharing a call.
+     */
+    public Intent execute(String key, InputStream is, OutputStream os, Operation operation) {
+        Call call;
+        Sink sink = null;
+        boolean joined = false;
+        synchronized (mCalls) {
+            call = mCalls.get(key);
+            if (call != null) {
+                if (os == null) {
+                    joined = call.mOutput == null;
+                } else if (call.mOutput != null) {
+                    sink = call.mOutput.addSink();
+                    joined = sink != null;
+                }
+            }
+            if (!joined) {
+                call = new Call(os);
+                if (!mCalls.containsKey(key)) {
+                    mCalls.put(key, call);
+                }
+            }
+        }
+
+        if (joined) {
+            closeQuietly(is);
+            boolean complete = (sink == null) || sink.drainTo(os);
+            return call.await(complete);
+        }
+
+        Intent result = null;
+        try {
+            result = operation.execute(is, (os != null) ? call.mOutput : null);
+            if (call.mOutput != null && call.mOutput.isPrimaryFailed()) {
+                // joined callers got all of the output, but this one did not
+                return createErrorResult("output incomplete");
+            }
+            return result;
+        } finally {
+            synchronized (mCalls) {
+                if (mCalls.get(key) == call) {
+                    mCalls.remove(key);
+                }
+            }
+            call.complete(result);
+        }
+    }
+
+    private static void closeQuietly(InputStream is) {
+        if (is != null) {
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.e(SMimeApi.TAG, "IOException when closing InputStream", e);
+            }
+        }
+    }
+
+    private static Intent createErrorResult(String message) {
+        Intent result = new Intent();
+        result.putExtra(SMimeApi.RESULT_CODE, SMimeApi.RESULT_CODE_ERROR);
+        result.putExtra(SMimeApi.RESULT_ERROR,
+                new SmimeError(SmimeError.CLIENT_SIDE_ERROR, message));
+        return result;
+    }
+
+    private class Call {
+        final FanOutOutputStream mOutput;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        Intent mResult;
+
+        Call(OutputStream os) {
+            mOutput = (os != null) ? new FanOutOutputStream(os) : null;
+        }
+
+        /**
+         * @param complete false if the output of the caller is incomplete
+         */
+        Intent await(boolean complete) {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (mResult == null) {
+                return createErrorResult("shared call failed");
+            }
+            if (!complete) {
+                return createErrorResult("output of shared call incomplete");
+            }
+            return new Intent(mResult);
+        }
+
+        void complete(Intent result) {
+            if (mOutput != null) {
+                mOutput.finishSinks();
+            }
+            mResult = result;
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * Output of a shared call queued for a joined caller, which writes it on its own thread
+     */
+    private class Sink {
+        private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+        private long mQueued;
+        private boolean mFinished;
+        private boolean mOverflowed;
+
+        synchronized void offer(byte[] chunk) {
+            if (mOverflowed) {
+                return;
+            }
+            // room for the backlog it joined with plus as much again
+            if (mQueued + chunk.length > 2L * mMaxBacklog) {
+                // too slow, give up on this caller instead of buffering without limit
+                mOverflowed = true;
+                mChunks.clear();
+                notifyAll();
+                return;
+            }
+            mChunks.add(chunk);
+            mQueued += chunk.length;
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            mFinished = true;
+            notifyAll();
+        }
+
+        private synchronized byte[] take() throws InterruptedException {
+            while (mChunks.isEmpty() && !mFinished && !mOverflowed) {
+                wait();
+            }
+            if (mOverflowed) {
+                return null;
+            }
+            byte[] chunk = mChunks.poll();
+            if (chunk != null) {
+                mQueued -= chunk.length;
+            }
+            return chunk;
+        }
+
+        /**
+         * Writes the queued output to os until the shared call has finished and closes os
+         *
+         * @return false if not all output could be written
+         */
+        boolean drainTo(OutputStream os) {
+            try {
+                byte[] chunk;
+                while ((chunk = take()) != null) {
+                    os.write(chunk);
+                }
+                synchronized (this) {
+                    return !mOverflowed;
+                }
+            } catch (IOException e) {
+                Log.e(SMimeApi.TAG, "IOException when writing to coalesced caller", e);
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                synchronized (this) {
+                    // stop queueing for a caller which is gone
+                    mOverflowed |= !mFinished;
+                    mChunks.clear();
+                }
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    Log.e(SMimeApi.TAG, "IOException when closing OutputStream", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes to the OutputStream of the caller executing the call and queues the output for all
+     * joined callers
+     */
+    private class FanOutOutputStream extends OutputStream {
+        private final OutputStream mPrimary;
+        private final ArrayList<Sink> mSinks = new ArrayList<>();
+        private ByteArrayOutputStream mBacklog = new ByteArrayOutputStream();
+        // only accessed by the thread writing the output of the call
+        private IOException mPrimaryFailure;
+
+        FanOutOutputStream(OutputStream primary) {
+            this.mPrimary = primary;
+        }
+
+        /**
+         * Returns a sink starting with a copy of the backlog, or null if it is too late to join
+         */
+        synchronized Sink addSink() {
+            if (mBacklog == null) {
+                return null;
+            }
+            Sink sink = new Sink();
+            if (mBacklog.size() > 0) {
+                sink.offer(mBacklog.toByteArray());
+            }
+            mSinks.add(sink);
+            return sink;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[]{(byte) oneByte}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            boolean shared;
+            synchronized (this) {
+                if (mBacklog != null) {
+                    if (mBacklog.size() + count > mMaxBacklog) {
+                        // too late to join from now on
+                        mBacklog = null;
+                    } else {
+                        mBacklog.write(buffer, offset, count);
+                    }
+                }
+                if (!mSinks.isEmpty()) {
+                    byte[] chunk = new byte[count];
+                    System.arraycopy(buffer, offset, chunk, 0, count);
+                    for (Sink sink : mSinks) {
+                        sink.offer(chunk);
+                    }
+                }
+                shared = mBacklog != null || !mSinks.isEmpty();
+            }
+
+            if (mPrimaryFailure == null) {
+                try {
+                    mPrimary.write(buffer, offset, count);
+                } catch (IOException e) {
+                    mPrimaryFailure = e;
+                }
+            }
+            // keep the call going for joined callers, only stop it if nobody else needs it
+            if (mPrimaryFailure != null && !shared) {
+                throw mPrimaryFailure;
+            }
+        }
+
+        /**
+         * Returns true if the output of the caller executing the call is incomplete
+         */
+        boolean isPrimaryFailed() {
+            return mPrimaryFailure != null;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mPrimaryFailure == null) {
+                mPrimary.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mPrimary.close();
+        }
+
+        synchronized void finishSinks() {
+            for (Sink sink : mSinks) {
+                sink.finish();
+            }
+            mSinks.clear();
+            mBacklog = null;
+        }
+    }
+}
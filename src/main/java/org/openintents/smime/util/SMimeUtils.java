@@ -16,14 +16,12 @@
 
 package org.openintents.smime.util;
 
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import android.content.Context;
-import android.content.Intent;
-import android.content.pm.ResolveInfo;
 import android.text.TextUtils;
 
 public class SMimeUtils {
@@ -58,43 +56,211 @@ public class SMimeUtils {
     }
 
     public static boolean isAvailable(Context context) {
-        Intent intent = new Intent(SMimeApi.SERVICE_INTENT);
-        List<ResolveInfo> resInfo = context.getPackageManager().queryIntentServices(intent, 0);
-        return !resInfo.isEmpty();
+        return SMimeProviderRegistry.getInstance(context).hasProviders();
     }
 
-    public static String convertKeyIdToHex(long keyId) {
-        return "0x" + convertKeyIdToHex32bit(keyId >> 32) + convertKeyIdToHex32bit(keyId);
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(out);
     }
 
-    private static String convertKeyIdToHex32bit(long keyId) {
-        String hexString = Long.toHexString(keyId & 0xffffffffL).toLowerCase(Locale.ENGLISH);
-        while (hexString.length() < 8) {
-            hexString = "0" + hexString;
+    /**
+     * Length of a key ID formatted by {@link #convertKeyIdToHex(long)}
+     */
+    public static final int KEY_ID_HEX_LENGTH = 18;
+
+    private static final char[] HEX_DIGITS_UPPER = "0123456789ABCDEF".toCharArray();
+
+    // direct-mapped cache of formatted key ids, entries are immutable so races are harmless
+    private static final int KEY_ID_CACHE_SIZE = 256;
+    private static final KeyIdHex[] sKeyIdCache = new KeyIdHex[KEY_ID_CACHE_SIZE];
+
+    private static class KeyIdHex {
+        final long keyId;
+        final String hex;
+
+        KeyIdHex(long keyId, String hex) {
+            this.keyId = keyId;
+            this.hex = hex;
         }
+    }
+
+    /**
+     * Returns the key id as "0x" followed by 16 lower case hex digits. Strings of recently
+     * formatted key ids are reused.
+     */
+    public static String convertKeyIdToHex(long keyId) {
+        int index = (int) (keyId ^ (keyId >>> 32)) * 0x9E3779B9 >>> 24;
+        KeyIdHex cached = sKeyIdCache[index];
+        if (cached != null && cached.keyId == keyId) {
+            return cached.hex;
+        }
+        char[] hex = new char[KEY_ID_HEX_LENGTH];
+        convertKeyIdToHex(keyId, hex, 0);
+        String hexString = new String(hex);
+        sKeyIdCache[index] = new KeyIdHex(keyId, hexString);
         return hexString;
     }
 
+    /**
+     * Writes the key id as "0x" followed by 16 lower case hex digits
+     *
+     * @return offset after the written chars
+     */
+    public static int convertKeyIdToHex(long keyId, char[] dest, int offset) {
+        dest[offset] = '0';
+        dest[offset + 1] = 'x';
+        for (int i = 0; i < 16; i++) {
+            dest[offset + 2 + i] = HEX_DIGITS[(int) (keyId >>> (60 - 4 * i)) & 0xf];
+        }
+        return offset + KEY_ID_HEX_LENGTH;
+    }
+
+    public static StringBuilder appendKeyIdHex(StringBuilder sb, long keyId) {
+        sb.append('0').append('x');
+        for (int i = 0; i < 16; i++) {
+            sb.append(HEX_DIGITS[(int) (keyId >>> (60 - 4 * i)) & 0xf]);
+        }
+        return sb;
+    }
 
-    private static final Pattern USER_ID_PATTERN = Pattern.compile("^(.*?)(?: \\((.*)\\))?(?: <(.*)>)?$");
+    /**
+     * Parses a key id of up to 16 hex digits, with or without "0x" prefix, case-insensitive
+     *
+     * @throws NumberFormatException if hex is not a valid key id
+     */
+    public static long parseKeyIdHex(CharSequence hex) {
+        int length = hex.length();
+        int i = 0;
+        if (length >= 2 && hex.charAt(0) == '0' && (hex.charAt(1) == 'x' || hex.charAt(1) == 'X')) {
+            i = 2;
+        }
+        if (length == i || length - i > 16) {
+            throw new NumberFormatException("invalid key id: " + hex);
+        }
+        long keyId = 0;
+        for (; i < length; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit == -1) {
+                throw new NumberFormatException("invalid key id: " + hex);
+            }
+            keyId = (keyId << 4) | digit;
+        }
+        return keyId;
+    }
+
+    /**
+     * Formats a fingerprint in upper case groups of four hex digits separated by spaces,
+     * e.g., "AB12 CD34 ..."
+     */
+    public static String formatFingerprint(byte[] fingerprint) {
+        return appendFingerprint(new StringBuilder(fingerprint.length * 5 / 2), fingerprint, 2, ' ',
+                true).toString();
+    }
+
+    /**
+     * Appends a fingerprint in hex, e.g., colon separated with groupSize 1 and separator ':'
+     *
+     * @param groupSize bytes per group, 0 for no grouping
+     */
+    public static StringBuilder appendFingerprint(StringBuilder sb, byte[] fingerprint,
+                                                  int groupSize, char separator,
+                                                  boolean upperCase) {
+        char[] digits = upperCase ? HEX_DIGITS_UPPER : HEX_DIGITS;
+        for (int i = 0; i < fingerprint.length; i++) {
+            if (groupSize > 0 && i > 0 && i % groupSize == 0) {
+                sb.append(separator);
+            }
+            sb.append(digits[(fingerprint[i] >> 4) & 0xf]);
+            sb.append(digits[fingerprint[i] & 0xf]);
+        }
+        return sb;
+    }
 
     /**
      * Splits userId string into naming part, email part, and comment part
      * <p/>
-     * User ID matching:
-     * http://fiddle.re/t4p6f
+     * Same result as matching "^(.*?)(?: \\((.*)\\))?(?: <(.*)>)?$" (http://fiddle.re/t4p6f),
+     * but in linear time: the name is the shortest prefix after which the rest is
+     * " (comment)", " (comment) <email>", " <email>" or empty. User IDs containing line
+     * terminators do not match.
      *
      * @param userId
      * @return theParsedUserInfo
      */
     public static UserId splitUserId(final String userId) {
-        if (!TextUtils.isEmpty(userId)) {
-            final Matcher matcher = USER_ID_PATTERN.matcher(userId);
-            if (matcher.matches()) {
-                return new UserId(matcher.group(1), matcher.group(3), matcher.group(2));
+        if (userId == null || userId.isEmpty()) {
+            return new UserId(null, null, null);
+        }
+        final int n = userId.length();
+        for (int i = 0; i < n; i++) {
+            char c = userId.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return new UserId(null, null, null);
             }
         }
-        return new UserId(null, null, null);
+
+        final char last = userId.charAt(n - 1);
+        // start of the last ") <", which separates a comment from the email
+        final int commentEnd = (last == '>') ? userId.lastIndexOf(") <") : -1;
+
+        for (int i = 0; i < n - 1; i++) {
+            if (userId.charAt(i) != ' ') {
+                continue;
+            }
+            char next = userId.charAt(i + 1);
+            if (next == '(') {
+                if (last == ')' && n - i >= 3) {
+                    return new UserId(userId.substring(0, i), null,
+                            userId.substring(i + 2, n - 1));
+                }
+                if (last == '>' && commentEnd >= i + 2) {
+                    return new UserId(userId.substring(0, i),
+                            userId.substring(commentEnd + 3, n - 1),
+                            userId.substring(i + 2, commentEnd));
+                }
+            } else if (next == '<' && last == '>' && n - i >= 3) {
+                return new UserId(userId.substring(0, i), userId.substring(i + 2, n - 1), null);
+            }
+        }
+        return new UserId(userId, null, null);
+    }
+
+    /**
+     * Splits many user IDs at once, e.g., those of a SmimeSignatureResult, see
+     * {@link #splitUserId(String)}. Repeated names, emails and comments share one String.
+     */
+    public static UserIdList splitUserIds(List<String> userIds) {
+        int size = userIds.size();
+        String[] names = new String[size];
+        String[] emails = new String[size];
+        String[] comments = new String[size];
+        HashMap<String, String> pool = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            UserId userId = splitUserId(userIds.get(i));
+            names[i] = intern(pool, userId.name);
+            emails[i] = intern(pool, userId.email);
+            comments[i] = intern(pool, userId.comment);
+        }
+        return new UserIdList(names, emails, comments);
+    }
+
+    private static String intern(HashMap<String, String> pool, String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = pool.get(value);
+        if (pooled == null) {
+            pool.put(value, value);
+            return value;
+        }
+        return pooled;
     }
 
     /**
@@ -115,6 +281,29 @@ public class SMimeUtils {
         return userIdString;
     }
 
+    /**
+     * Parsed user IDs in columns, index i of each array belongs to the i-th user ID
+     */
+    public static class UserIdList {
+        public final String[] names;
+        public final String[] emails;
+        public final String[] comments;
+
+        UserIdList(String[] names, String[] emails, String[] comments) {
+            this.names = names;
+            this.emails = emails;
+            this.comments = comments;
+        }
+
+        public int size() {
+            return names.length;
+        }
+
+        public UserId get(int index) {
+            return new UserId(names[index], emails[index], comments[index]);
+        }
+    }
+
     public static class UserId {
         public final String name;
         public final String email;
@@ -0,0 +1,134 @@
+package org.openintents.smime.util;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.openintents.smime.ISMimeService;
+
+import java.util.HashMap;
+
+/**
+ * Connects to a provider ahead of the first real operation, e.g., at app start, and measures
+ * the cold-start cost.
+ * <p/>
+ * The shared connection of the provider is bound in the background and primed with a cheap
+ * ACTION_CHECK_PERMISSION call, so that the provider process is running and has loaded its
+ * certificates when the first message is opened. Bind latency and latency of the priming call
+ * are recorded as {@link Metrics}.
+ */
+public class SMimeWarmUp {
+
+    public interface WarmUpCallback {
+        /**
+         * Called on the main thread when the priming call returned
+         *
+         * @param result result of ACTION_CHECK_PERMISSION
+         */
+        void onWarmedUp(Metrics metrics, Intent result);
+    }
+
+    private static final HashMap<String, Metrics> sMetrics = new HashMap<>();
+
+    /**
+     * Starts binding and priming the given provider. The returned handle keeps the connection
+     * bound, release it when the app no longer needs the provider.
+     *
+     * @param callback may be null
+     */
+    public static SMimeServiceConnectionRegistry.Handle warmUp(final Context context,
+                                                               final String providerPackageName,
+                                                               final WarmUpCallback callback) {
+        final long start = SystemClock.elapsedRealtime();
+        SMimeServiceConnectionRegistry.Handle handle =
+                SMimeServiceConnectionRegistry.getInstance(context).acquire(providerPackageName);
+
+        handle.getConnection().runWhenBound(new SMimeServiceConnection.ServiceTask() {
+            @Override
+            public void run(ISMimeService service) {
+                final long bound = SystemClock.elapsedRealtime();
+
+                SMimeApi api = new SMimeApi(context, service);
+                api.executeApiAsync(new Intent(SMimeApi.ACTION_CHECK_PERMISSION), null, null,
+                        new SMimeApi.ISMimeCallback() {
+                            @Override
+                            public void onReturn(Intent result) {
+                                long returned = SystemClock.elapsedRealtime();
+                                Metrics metrics = new Metrics(providerPackageName,
+                                        bound - start, returned - bound);
+                                synchronized (sMetrics) {
+                                    sMetrics.put(providerPackageName, metrics);
+                                }
+                                Log.d(SMimeApi.TAG, "warm-up: " + metrics);
+
+                                if (callback != null) {
+                                    callback.onWarmedUp(metrics, result);
+                                }
+                            }
+                        });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                // the caller still releases the returned handle
+                Log.e(SMimeApi.TAG, "warm-up of " + providerPackageName + " failed", e);
+            }
+        });
+
+        return handle;
+    }
+
+    /**
+     * Returns the metrics of the last completed warm-up of the given provider, or null
+     */
+    public static Metrics getMetrics(String providerPackageName) {
+        synchronized (sMetrics) {
+            return sMetrics.get(providerPackageName);
+        }
+    }
+
+    public static class Metrics {
+        private final String mProviderPackageName;
+        private final long mBindLatency;
+        private final long mFirstCallLatency;
+
+        Metrics(String providerPackageName, long bindLatency, long firstCallLatency) {
+            this.mProviderPackageName = providerPackageName;
+            this.mBindLatency = bindLatency;
+            this.mFirstCallLatency = firstCallLatency;
+        }
+
+        public String getProviderPackageName() {
+            return mProviderPackageName;
+        }
+
+        /**
+         * Milliseconds from starting the warm-up until the service was bound,
+         * includes spawning the provider process
+         */
+        public long getBindLatency() {
+            return mBindLatency;
+        }
+
+        /**
+         * Milliseconds the priming call took after the service was bound
+         */
+        public long getFirstCallLatency() {
+            return mFirstCallLatency;
+        }
+
+        /**
+         * Milliseconds from starting the warm-up until the first operation returned
+         */
+        public long getTimeToFirstOperation() {
+            return mBindLatency + mFirstCallLatency;
+        }
+
+        @Override
+        public String toString() {
+            return mProviderPackageName + " bind: " + mBindLatency + "ms, first call: "
+                    + mFirstCallLatency + "ms";
+        }
+    }
+}
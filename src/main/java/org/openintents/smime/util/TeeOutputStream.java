@@ -0,0 +1,107 @@
+package org.openintents.smime.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes all data to two OutputStreams, both are closed when this stream is closed.
+ * <p/>
+ * Write errors are remembered, because the stream is usually written on a transfer thread which
+ * swallows them. Use {@link #isComplete()} after the writing thread has finished to check if
+ * both streams received all data.
+ */
+public class TeeOutputStream extends OutputStream {
+    private final OutputStream mFirst;
+    private final OutputStream mSecond;
+
+    private long mCount;
+    private long mFirstCount;
+    private long mSecondCount;
+    private volatile IOException mException;
+    private volatile boolean mClosed;
+
+    public TeeOutputStream(OutputStream first, OutputStream second) {
+        this.mFirst = first;
+        this.mSecond = second;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        mCount++;
+        try {
+            mFirst.write(oneByte);
+            mFirstCount++;
+            mSecond.write(oneByte);
+            mSecondCount++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        mCount += count;
+        try {
+            mFirst.write(buffer, offset, count);
+            mFirstCount += count;
+            mSecond.write(buffer, offset, count);
+            mSecondCount += count;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try {
+            mFirst.flush();
+            mSecond.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mFirst.close();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            try {
+                mSecond.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        mClosed = true;
+    }
+
+    private void fail(IOException e) throws IOException {
+        if (mException == null) {
+            mException = e;
+        }
+        throw e;
+    }
+
+    /**
+     * Returns the number of bytes written to this stream
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the first write error, or null if there was none
+     */
+    public IOException getException() {
+        return mException;
+    }
+
+    /**
+     * Returns true if the stream has been closed and both streams received all data without error
+     */
+    public boolean isComplete() {
+        return mClosed && mException == null && mFirstCount == mCount && mSecondCount == mCount;
+    }
+}
@@ -0,0 +1,136 @@
+package org.openintents.smime.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Base64DecodingInputStreamTest {
+
+    private static byte[] decode(String encoded) throws IOException {
+        InputStream is = new Base64DecodingInputStream(
+                new ByteArrayInputStream(encoded.getBytes("US-ASCII")));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ParcelFileDescriptorUtil.copy(is, os);
+        return os.toByteArray();
+    }
+
+    private static String encode(byte[] data, int lineLength, boolean crlf) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Base64EncodingOutputStream encoder = new Base64EncodingOutputStream(os, lineLength, crlf);
+        encoder.write(data);
+        encoder.close();
+        return os.toString("US-ASCII");
+    }
+
+    @Test
+    public void testEncode() throws IOException {
+        // RFC 4648, section 10
+        String[] plain = {"", "f", "fo", "foo", "foob", "fooba", "foobar"};
+        String[] encoded = {"", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy"};
+        for (int i = 0; i < plain.length; i++) {
+            assertEquals(encoded[i], encode(plain[i].getBytes("US-ASCII"), 0, true));
+        }
+    }
+
+    @Test
+    public void testLineWrapping() throws IOException {
+        String encoded = encode(new byte[100], Base64EncodingOutputStream.MIME_LINE_LENGTH, true);
+        String[] lines = encoded.split("\r\n");
+        assertEquals(76, lines[0].length());
+        assertEquals(136 - 76, lines[1].length());
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(3);
+        for (int length = 0; length < 300; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertArrayEquals(data, decode(encode(data, 76, true)));
+            assertArrayEquals(data, decode(encode(data, 64, false)));
+            assertArrayEquals(data, decode(encode(data, 0, false)));
+        }
+    }
+
+    @Test
+    public void testRoundTripSmallWrites() throws IOException {
+        Random random = new Random(4);
+        byte[] data = new byte[10000];
+        random.nextBytes(data);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Base64EncodingOutputStream encoder = new Base64EncodingOutputStream(os);
+        for (int i = 0; i < data.length; ) {
+            int count = Math.min(random.nextInt(10), data.length - i);
+            if (count == 1) {
+                encoder.write(data[i]);
+            } else {
+                encoder.write(data, i, count);
+            }
+            i += count;
+        }
+        encoder.close();
+
+        InputStream decoder = new Base64DecodingInputStream(
+                new ByteArrayInputStream(os.toByteArray()));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        int b;
+        while ((b = decoder.read()) != -1) {
+            decoded.write(b);
+        }
+        assertArrayEquals(data, decoded.toByteArray());
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        InputStream decoder = new Base64DecodingInputStream(
+                new ByteArrayInputStream("Zm9vYmFy".getBytes("US-ASCII")));
+        assertEquals(4, decoder.skip(4));
+        assertEquals('a', decoder.read());
+        assertEquals(1, decoder.skip(10));
+        assertEquals(-1, decoder.read());
+    }
+
+    @Test
+    public void testStopsAtPadding() throws IOException {
+        assertArrayEquals("f".getBytes("US-ASCII"), decode("Zg==Zm9v"));
+        assertTrue(decode("").length == 0);
+    }
+
+    @Test
+    public void testPadded() throws IOException {
+        assertArrayEquals("f".getBytes("US-ASCII"), decode("Zg=="));
+        assertArrayEquals("fo".getBytes("US-ASCII"), decode("Zm8="));
+        assertArrayEquals("foo".getBytes("US-ASCII"), decode("Zm9v"));
+    }
+
+    @Test
+    public void testMissingPadding() throws IOException {
+        assertArrayEquals("f".getBytes("US-ASCII"), decode("Zg"));
+        assertArrayEquals("fo".getBytes("US-ASCII"), decode("Zm8"));
+        assertArrayEquals("foobar".getBytes("US-ASCII"), decode("Zm9v\r\nYmFy\r\n"));
+        assertArrayEquals("fooba".getBytes("US-ASCII"), decode("Zm9v\r\nYmE\r\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        decode("Zm9vY");
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidPadding() throws IOException {
+        decode("Zm9vY===");
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidCharacter() throws IOException {
+        decode("Zm9v*mFy");
+    }
+}
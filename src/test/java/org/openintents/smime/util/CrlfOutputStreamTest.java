@@ -0,0 +1,87 @@
+package org.openintents.smime.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CrlfOutputStreamTest {
+
+    private static String canonicalize(String text) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        OutputStream crlf = new CrlfOutputStream(os);
+        crlf.write(text.getBytes("US-ASCII"));
+        crlf.close();
+        return os.toString("US-ASCII");
+    }
+
+    @Test
+    public void testLineEndings() throws IOException {
+        assertEquals("a\r\nb\r\nc\r\nd", canonicalize("a\nb\r\nc\rd"));
+        assertEquals("\r\n\r\n\r\n", canonicalize("\r\r\n\n"));
+        assertEquals("abc", canonicalize("abc"));
+        assertEquals("", canonicalize(""));
+        assertEquals("a\r\n", canonicalize("a\r"));
+    }
+
+    @Test
+    public void testCrlfAcrossWrites() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        OutputStream crlf = new CrlfOutputStream(os);
+        crlf.write("a\r".getBytes("US-ASCII"));
+        crlf.write("\nb\r".getBytes("US-ASCII"));
+        crlf.write('\n');
+        crlf.write("\n".getBytes("US-ASCII"));
+        crlf.close();
+        assertEquals("a\r\nb\r\n\r\n", os.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testCanonicalizeDataSource() throws IOException {
+        SMimeApi.SMimeDataSource source = CrlfOutputStream.canonicalize(
+                new SMimeApi.SMimeDataSource() {
+                    @Override
+                    public void writeTo(OutputStream os) throws IOException {
+                        os.write("Content-Type: text/plain\n\nHello\r".getBytes("US-ASCII"));
+                    }
+                });
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        source.writeTo(os);
+        assertEquals("Content-Type: text/plain\r\n\r\nHello\r\n", os.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testRandomWrites() throws IOException {
+        // splitting the input into arbitrary writes must not change the output
+        Random random = new Random(6);
+        char[] alphabet = {'a', 'b', '\r', '\n'};
+        for (int run = 0; run < 1000; run++) {
+            char[] text = new char[random.nextInt(50)];
+            for (int i = 0; i < text.length; i++) {
+                text[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            byte[] data = new String(text).getBytes("US-ASCII");
+
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            OutputStream crlf = new CrlfOutputStream(os);
+            for (int i = 0; i < data.length; ) {
+                int count = Math.min(random.nextInt(5), data.length - i);
+                if (count == 1) {
+                    crlf.write(data[i]);
+                } else {
+                    crlf.write(data, i, count);
+                }
+                i += count;
+            }
+            crlf.close();
+
+            String expected = new String(text).replace("\r\n", "\n").replace('\r', '\n')
+                    .replace("\n", "\r\n");
+            assertEquals(expected, os.toString("US-ASCII"));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.openintents.smime.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuotedPrintableDecodingInputStreamTest {
+
+    private static String decode(String encoded) throws IOException {
+        InputStream is = new QuotedPrintableDecodingInputStream(
+                new ByteArrayInputStream(encoded.getBytes("US-ASCII")));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ParcelFileDescriptorUtil.copy(is, os);
+        return os.toString("ISO-8859-1");
+    }
+
+    private static byte[] encode(byte[] data) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        QuotedPrintableEncodingOutputStream encoder = new QuotedPrintableEncodingOutputStream(os);
+        encoder.write(data);
+        encoder.close();
+        return os.toByteArray();
+    }
+
+    private static byte[] decode(byte[] encoded) throws IOException {
+        InputStream is = new QuotedPrintableDecodingInputStream(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ParcelFileDescriptorUtil.copy(is, os);
+        return os.toByteArray();
+    }
+
+    @Test
+    public void testEncode() throws IOException {
+        // CRLF is a hard line break, whitespace before it is encoded, lone LF is encoded
+        byte[] plain = "a=b\u00e4 c\r\nd \r\ne\nf".getBytes("ISO-8859-1");
+        assertEquals("a=3Db=E4 c\r\nd=20\r\ne=0Af", new String(encode(plain), "US-ASCII"));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(5);
+        byte[] alphabet = {'a', 'b', ' ', '\t', '=', '\r', '\n', (byte) 0xe4, '.', 0};
+        for (int run = 0; run < 2000; run++) {
+            byte[] data = new byte[random.nextInt(300)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            byte[] encoded = encode(data);
+            for (String line : new String(encoded, "US-ASCII").split("\r\n")) {
+                assertTrue(line.length() <= 76);
+            }
+            assertArrayEquals(data, decode(encoded));
+        }
+    }
+
+    @Test
+    public void testEscapes() throws IOException {
+        assertEquals("a=b\u00e4", decode("a=3Db=E4"));
+        assertEquals("a=b\u00e4", decode("a=3db=e4"));
+    }
+
+    @Test
+    public void testSoftLineBreaks() throws IOException {
+        assertEquals("abcdef\r\n", decode("abc=\r\ndef\r\n"));
+        assertEquals("abcdef\n", decode("abc=\ndef\n"));
+        assertEquals("abc", decode("abc=\r\n"));
+    }
+
+    @Test
+    public void testMalformedEscapes() throws IOException {
+        assertEquals("a=Gb", decode("a=Gb"));
+        assertEquals("a=", decode("a="));
+        assertEquals("a=4", decode("a=4"));
+    }
+
+    @Test
+    public void testReadDoesNotBlockOnPartialEscape() throws IOException {
+        // the rest of the escape sequence is not available yet, reading it again would fail
+        InputStream in = new InputStream() {
+            private final byte[] mData = "abc=".getBytes();
+            private boolean mDone;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                if (mDone) {
+                    throw new IOException("blocked");
+                }
+                mDone = true;
+                System.arraycopy(mData, 0, buffer, offset, mData.length);
+                return mData.length;
+            }
+        };
+        byte[] buffer = new byte[16];
+        assertEquals(3, new QuotedPrintableDecodingInputStream(in).read(buffer, 0, buffer.length));
+    }
+}
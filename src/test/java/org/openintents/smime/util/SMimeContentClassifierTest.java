@@ -0,0 +1,156 @@
+package org.openintents.smime.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMimeContentClassifierTest {
+    private static final String PGP_MESSAGE = "-----BEGIN PGP MESSAGE-----\r\n"
+            + "\r\n"
+            + "hQEMA\r\n"
+            + "-----END PGP MESSAGE-----\r\n";
+    private static final String PGP_SIGNED_MESSAGE = "-----BEGIN PGP SIGNED MESSAGE-----\n"
+            + "Hash: SHA256\n"
+            + "\n"
+            + "Hello\n"
+            + "-----BEGIN PGP SIGNATURE-----\n"
+            + "iQEc\n"
+            + "-----END PGP SIGNATURE-----\n";
+
+    /**
+     * Classifies the message as CharSequence and as stream, both have to agree
+     */
+    private static SMimeContentClassifier.Result classify(String message) throws IOException {
+        SMimeContentClassifier.Result result = SMimeContentClassifier.classify(message);
+        SMimeContentClassifier.Result streamResult = SMimeContentClassifier.classify(
+                new ByteArrayInputStream(message.getBytes("ISO-8859-1")));
+        assertEquals(result.type, streamResult.type);
+        assertEquals(result.start, streamResult.start);
+        assertEquals(result.bodyStart, streamResult.bodyStart);
+        assertEquals(result.signatureStart, streamResult.signatureStart);
+        assertEquals(result.end, streamResult.end);
+        assertEquals(result.boundary, streamResult.boundary);
+        return result;
+    }
+
+    @Test
+    public void testEnveloped() throws IOException {
+        String headers = "Subject: test\r\n"
+                + "Content-Type: application/pkcs7-mime; smime-type=enveloped-data;\r\n"
+                + "\tname=smime.p7m\r\n"
+                + "\r\n";
+        SMimeContentClassifier.Result result = classify(headers + "MIAGCSqGSIb3DQEHA6CAMIAC\r\n");
+        assertEquals(SMimeContentClassifier.CLASS_SMIME_ENVELOPED, result.type);
+        assertEquals("Subject: test\r\n".length(), result.start);
+        assertEquals(headers.length(), result.bodyStart);
+        assertEquals(-1, result.end);
+        assertTrue(result.isSMime());
+        assertFalse(result.isPgp());
+    }
+
+    @Test
+    public void testOpaqueSigned() throws IOException {
+        SMimeContentClassifier.Result result = classify(
+                "content-type: Application/X-PKCS7-MIME; smime-type=\"signed-data\"\n\nMIAG\n");
+        assertEquals(SMimeContentClassifier.CLASS_SMIME_OPAQUE_SIGNED, result.type);
+        assertEquals(0, result.start);
+    }
+
+    @Test
+    public void testMultipartSigned() throws IOException {
+        SMimeContentClassifier.Result result = classify("Content-Type: multipart/signed;\r\n"
+                + " protocol=\"application/pkcs7-signature\"; micalg=sha-256;\r\n"
+                + " boundary=\"----=_Part_0\"\r\n"
+                + "\r\n"
+                + "------=_Part_0\r\n");
+        assertEquals(SMimeContentClassifier.CLASS_SMIME_MULTIPART_SIGNED, result.type);
+        assertEquals("----=_Part_0", result.boundary);
+    }
+
+    @Test
+    public void testMultipartSignedPgp() throws IOException {
+        SMimeContentClassifier.Result result = classify("Content-Type: multipart/signed;"
+                + " protocol=\"application/pgp-signature\"; boundary=b\r\n\r\n--b\r\n");
+        assertEquals(SMimeContentClassifier.CLASS_NONE, result.type);
+        assertNull(result.boundary);
+    }
+
+    @Test
+    public void testHeadersWithoutBody() throws IOException {
+        SMimeContentClassifier.Result result =
+                classify("Content-Type: application/pkcs7-mime");
+        assertEquals(SMimeContentClassifier.CLASS_SMIME_ENVELOPED, result.type);
+    }
+
+    @Test
+    public void testPgpMessage() throws IOException {
+        String prefix = "Hi,\r\n\r\n";
+        SMimeContentClassifier.Result result = classify(prefix + PGP_MESSAGE + "Bye\r\n");
+        assertEquals(SMimeContentClassifier.CLASS_PGP_MESSAGE, result.type);
+        assertEquals(prefix.length(), result.start);
+        assertEquals(prefix.length() + PGP_MESSAGE.length(), result.end);
+        assertTrue(result.isPgp());
+    }
+
+    @Test
+    public void testPgpSignedMessage() throws IOException {
+        SMimeContentClassifier.Result result = classify(PGP_SIGNED_MESSAGE);
+        assertEquals(SMimeContentClassifier.CLASS_PGP_SIGNED_MESSAGE, result.type);
+        assertEquals(0, result.start);
+        assertEquals(PGP_SIGNED_MESSAGE.indexOf("-----BEGIN PGP SIGNATURE"), result.signatureStart);
+        assertEquals(PGP_SIGNED_MESSAGE.length(), result.end);
+    }
+
+    @Test
+    public void testPgpArmorAtEofWithoutNewline() throws IOException {
+        String message = PGP_MESSAGE.substring(0, PGP_MESSAGE.length() - 2);
+        SMimeContentClassifier.Result result = classify(message);
+        assertEquals(SMimeContentClassifier.CLASS_PGP_MESSAGE, result.type);
+        assertEquals(message.length(), result.end);
+    }
+
+    @Test
+    public void testPgpArmorNotAtLineStart() throws IOException {
+        assertEquals(SMimeContentClassifier.CLASS_NONE,
+                classify("> " + PGP_MESSAGE.replace("\r\n", "\r\n> ")).type);
+    }
+
+    @Test
+    public void testIncompleteArmor() throws IOException {
+        String message = PGP_MESSAGE.substring(0, PGP_MESSAGE.indexOf("-----END"));
+        // the whole message ends inside the armor
+        assertEquals(SMimeContentClassifier.CLASS_NONE, classify(message).type);
+
+        // only the prefix ends inside the armor
+        SMimeContentClassifier.Result result =
+                SMimeContentClassifier.classify(PGP_MESSAGE, message.length());
+        assertEquals(SMimeContentClassifier.CLASS_PGP_MESSAGE, result.type);
+        assertEquals(-1, result.end);
+    }
+
+    @Test
+    public void testNone() throws IOException {
+        SMimeContentClassifier.Result result = classify("Subject: hi\r\n\r\nHello\r\n");
+        assertEquals(SMimeContentClassifier.CLASS_NONE, result.type);
+        assertEquals(-1, result.start);
+        assertEquals(SMimeContentClassifier.CLASS_NONE, classify("").type);
+    }
+
+    @Test
+    public void testGetParameter() {
+        String value = "multipart/signed; protocol=\"application/pkcs7-signature\";"
+                + " Boundary=\"a\\\"b;c\"; micalg = sha-256";
+        assertEquals("application/pkcs7-signature",
+                SMimeContentClassifier.getParameter(value, "protocol"));
+        assertEquals("a\"b;c", SMimeContentClassifier.getParameter(value, "boundary"));
+        assertEquals("sha-256", SMimeContentClassifier.getParameter(value, "micalg"));
+        assertNull(SMimeContentClassifier.getParameter(value, "name"));
+        assertNull(SMimeContentClassifier.getParameter("text/plain", "charset"));
+    }
+}
@@ -0,0 +1,120 @@
+package org.openintents.smime.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SMimeEmailIndexTest {
+
+    @Test
+    public void testCanonicalize() {
+        assertEquals("alice@example.org",
+                SMimeEmailIndex.canonicalize(" Alice <Alice@Example.ORG> ", false));
+        assertEquals("alice+tag@example.org",
+                SMimeEmailIndex.canonicalize("alice+tag@example.org", false));
+        assertEquals("alice@example.org",
+                SMimeEmailIndex.canonicalize("alice+tag@example.org", true));
+        // a leading plus is part of the address
+        assertEquals("+alice@example.org",
+                SMimeEmailIndex.canonicalize("+alice@example.org", true));
+        assertEquals("a@b@example.org", SMimeEmailIndex.canonicalize("a@b@example.org", false));
+    }
+
+    @Test
+    public void testCanonicalizeIdn() {
+        assertEquals("user@xn--bcher-kva.example",
+                SMimeEmailIndex.canonicalize("user@b\u00fccher.example", false));
+        assertEquals("user@xn--bcher-kva.example",
+                SMimeEmailIndex.canonicalize("User@B\u00dcCHER.example", false));
+        assertEquals(SMimeEmailIndex.canonicalize("user@xn--bcher-kva.example", false),
+                SMimeEmailIndex.canonicalize("user@b\u00fccher.example", false));
+    }
+
+    @Test
+    public void testCanonicalizeInvalid() {
+        assertNull(SMimeEmailIndex.canonicalize("alice", false));
+        assertNull(SMimeEmailIndex.canonicalize("@example.org", false));
+        assertNull(SMimeEmailIndex.canonicalize("alice@", false));
+        assertNull(SMimeEmailIndex.canonicalize("", false));
+    }
+
+    @Test
+    public void testIdnLookup() {
+        SMimeEmailIndex index = new SMimeEmailIndex(true);
+        index.put("user+news@b\u00fccher.example", 7);
+        assertEquals(7, index.getKeyId("User <user@xn--bcher-kva.example>", 0));
+    }
+
+    @Test
+    public void testPutAndGet() {
+        SMimeEmailIndex index = new SMimeEmailIndex(false);
+        assertTrue(index.put("Alice <Alice@Example.org>", 1));
+        assertEquals(1, index.getKeyId("alice@example.org", 0));
+        assertTrue(index.contains(" ALICE@EXAMPLE.ORG "));
+        assertFalse(index.put("no address", 2));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testNullAddress() {
+        SMimeEmailIndex index = new SMimeEmailIndex(false);
+        assertFalse(index.put(null, 1));
+        assertEquals(-1, index.getKeyId(null, -1));
+        assertFalse(index.contains(null));
+        assertFalse(index.remove(null));
+    }
+
+    @Test
+    public void testRemove() {
+        SMimeEmailIndex index = new SMimeEmailIndex(false);
+        index.put("alice@example.org", 1);
+        index.put("bob@example.org", 2);
+        assertFalse(index.remove("alice@example.org", 2));
+        assertTrue(index.remove("alice@example.org", 1));
+        assertFalse(index.remove("alice@example.org"));
+        assertTrue(index.remove("Bob <bob@example.org>"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testRemoveKeepsCollidingEntries() {
+        SMimeEmailIndex index = new SMimeEmailIndex(false, 10000);
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            index.put("user" + i + "@example.org", i + 1);
+        }
+        boolean[] removed = new boolean[2000];
+        for (int i = 0; i < 1000; i++) {
+            int victim = random.nextInt(2000);
+            assertEquals(!removed[victim], index.remove("user" + victim + "@example.org"));
+            removed[victim] = true;
+        }
+        int size = 0;
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(removed[i] ? 0 : i + 1, index.getKeyId("user" + i + "@example.org", 0));
+            if (!removed[i]) {
+                size++;
+            }
+        }
+        assertEquals(size, index.size());
+    }
+
+    @Test
+    public void testBounded() {
+        SMimeEmailIndex index = new SMimeEmailIndex(false, 100);
+        index.put("frequent@example.org", 1);
+        for (int i = 0; i < 1000; i++) {
+            // looked up between insertions, so the clock hand gives it a second chance
+            assertEquals(1, index.getKeyId("frequent@example.org", 0));
+            index.put("user" + i + "@example.org", i + 2);
+            assertTrue(index.size() <= 100);
+        }
+        assertEquals(100, index.size());
+        assertTrue(index.contains("user999@example.org"));
+    }
+}
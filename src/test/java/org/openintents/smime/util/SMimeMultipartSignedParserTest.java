@@ -0,0 +1,110 @@
+package org.openintents.smime.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SMimeMultipartSignedParserTest {
+    private static final String HEADERS = "Content-Type: multipart/signed;\r\n"
+            + " protocol=\"application/pkcs7-signature\"; micalg=sha-256;\r\n"
+            + " boundary=\"xyz\"\r\n"
+            + "\r\n";
+    private static final String SIGNED = "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + "Hello\r\n"
+            + "--xyzzy is not a delimiter";
+    private static final String SIGNATURE_PART = "--xyz\r\n"
+            + "Content-Type: application/pkcs7-signature\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "\r\n"
+            + "AQID\r\n"
+            + "BA==\r\n";
+
+    private static SMimeMultipartSignedParser.Result parse(String message,
+                                                           ByteArrayOutputStream sink)
+            throws IOException {
+        return SMimeMultipartSignedParser.parse(
+                new ByteArrayInputStream(message.getBytes("US-ASCII")), sink);
+    }
+
+    private static void assertParsed(String message) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        SMimeMultipartSignedParser.Result result = parse(message, sink);
+        assertEquals("xyz", result.boundary);
+        assertEquals("sha-256", result.micalg);
+        assertEquals(SIGNED, sink.toString("US-ASCII"));
+        assertEquals(SIGNED.length(), result.signedLength);
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, result.signature);
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        assertParsed(HEADERS + "preamble\r\n--xyz\r\n" + SIGNED + "\r\n" + SIGNATURE_PART
+                + "--xyz--\r\nepilogue\r\n");
+    }
+
+    @Test
+    public void testParseLf() throws IOException {
+        String message = (HEADERS + "--xyz\n" + SIGNED + "\n" + SIGNATURE_PART + "--xyz--\n")
+                .replace("\r\n", "\n");
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        SMimeMultipartSignedParser.Result result = parse(message, sink);
+        assertEquals(SIGNED.replace("\r\n", "\n"), sink.toString("US-ASCII"));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, result.signature);
+    }
+
+    @Test
+    public void testCloseDelimiterAtEof() throws IOException {
+        assertParsed(HEADERS + "--xyz\r\n" + SIGNED + "\r\n" + SIGNATURE_PART + "--xyz--");
+    }
+
+    @Test
+    public void testCloseDelimiterAtEofWithWhitespace() throws IOException {
+        assertParsed(HEADERS + "--xyz\r\n" + SIGNED + "\r\n" + SIGNATURE_PART + "--xyz-- \t");
+    }
+
+    @Test
+    public void testCloseDelimiterAtEofWithCr() throws IOException {
+        assertParsed(HEADERS + "--xyz\r\n" + SIGNED + "\r\n" + SIGNATURE_PART + "--xyz--\r");
+    }
+
+    @Test
+    public void testLongSignedLines() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            line.append((char) ('a' + i % 26));
+        }
+        // the CR falls on the segment border of the line buffer
+        String signed = line.substring(0, 1023) + "\r\n" + line + "\r\n--xyzzy";
+        String message = HEADERS + "--xyz\r\n" + signed + "\r\n" + SIGNATURE_PART + "--xyz--";
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        parse(message, sink);
+        assertEquals(signed, sink.toString("US-ASCII"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testSignaturePartNotTerminated() throws IOException {
+        parse(HEADERS + "--xyz\r\n" + SIGNED + "\r\n" + SIGNATURE_PART + "--xyz-",
+                new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void testSignaturePartMissing() throws IOException {
+        parse(HEADERS + "--xyz\r\n" + SIGNED + "\r\n--xyz--\r\n", new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void testFirstBoundaryMissing() throws IOException {
+        parse(HEADERS + SIGNED + "\r\n", new ByteArrayOutputStream());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBoundaryMissing() throws IOException {
+        parse("Content-Type: multipart/signed\r\n\r\n--xyz\r\n", new ByteArrayOutputStream());
+    }
+}
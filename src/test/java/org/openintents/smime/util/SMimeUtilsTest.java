@@ -0,0 +1,143 @@
+package org.openintents.smime.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SMimeUtilsTest {
+    // splitUserId() used to match this, it has to give the same results
+    private static final Pattern USER_ID_PATTERN =
+            Pattern.compile("^(.*?)(?: \\((.*)\\))?(?: <(.*)>)?$");
+
+    private static void assertUserId(String name, String email, String comment, String userId) {
+        SMimeUtils.UserId split = SMimeUtils.splitUserId(userId);
+        assertEquals("name of " + userId, name, split.name);
+        assertEquals("email of " + userId, email, split.email);
+        assertEquals("comment of " + userId, comment, split.comment);
+    }
+
+    @Test
+    public void testSplitUserId() {
+        assertUserId("Alice", "alice@example.org", null, "Alice <alice@example.org>");
+        assertUserId("Alice", "alice@example.org", "work", "Alice (work) <alice@example.org>");
+        assertUserId("Alice", null, "work", "Alice (work)");
+        assertUserId("Alice Smith", null, null, "Alice Smith");
+        assertUserId("alice@example.org", null, null, "alice@example.org");
+        assertUserId("", "alice@example.org", null, " <alice@example.org>");
+        assertUserId("A (b) c", "d", null, "A (b) c <d>");
+        assertUserId("Alice", "a> <b", null, "Alice <a> <b>");
+    }
+
+    @Test
+    public void testSplitUserIdEmptyAndLineBreaks() {
+        assertUserId(null, null, null, null);
+        assertUserId(null, null, null, "");
+        assertUserId(null, null, null, "Alice\n<alice@example.org>");
+        assertUserId(null, null, null, "Alice <alice@example.org>\r");
+    }
+
+    @Test
+    public void testSplitUserIdLikeRegex() {
+        Random random = new Random(1);
+        char[] alphabet = {'a', 'b', ' ', ' ', '(', ')', '<', '>', '@', '\n'};
+        for (int run = 0; run < 200000; run++) {
+            char[] userId = new char[random.nextInt(12)];
+            for (int i = 0; i < userId.length; i++) {
+                userId[i] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String s = new String(userId);
+
+            String name = null;
+            String email = null;
+            String comment = null;
+            Matcher matcher = USER_ID_PATTERN.matcher(s);
+            if (!s.isEmpty() && matcher.matches()) {
+                name = matcher.group(1);
+                email = matcher.group(3);
+                comment = matcher.group(2);
+            }
+            assertUserId(name, email, comment, s);
+        }
+    }
+
+    @Test
+    public void testSplitUserIds() {
+        SMimeUtils.UserIdList list = SMimeUtils.splitUserIds(Arrays.asList(
+                "Alice <alice@example.org>", "Alice (work) <alice@example.com>", null,
+                new String("Alice") + " <alice@example.org>"));
+        assertEquals(4, list.size());
+        assertEquals("alice@example.com", list.get(1).email);
+        assertEquals("work", list.get(1).comment);
+        assertNull(list.get(2).name);
+        // repeated values share one String
+        assertSame(list.names[0], list.names[1]);
+        assertSame(list.emails[0], list.emails[3]);
+    }
+
+    @Test
+    public void testSplitUserIdsEmpty() {
+        assertEquals(0, SMimeUtils.splitUserIds(new ArrayList<String>()).size());
+    }
+
+    @Test
+    public void testKeyIdHex() {
+        assertEquals("0x0000000000000000", SMimeUtils.convertKeyIdToHex(0));
+        assertEquals("0x123456789abcdef0", SMimeUtils.convertKeyIdToHex(0x123456789abcdef0L));
+        assertEquals("0xffffffffffffffff", SMimeUtils.convertKeyIdToHex(-1));
+        assertEquals("0x0000000000000001", SMimeUtils.appendKeyIdHex(new StringBuilder(), 1)
+                .toString());
+
+        char[] dest = new char[SMimeUtils.KEY_ID_HEX_LENGTH + 1];
+        assertEquals(dest.length, SMimeUtils.convertKeyIdToHex(0xabL, dest, 1));
+        assertEquals("0x00000000000000ab", new String(dest, 1, SMimeUtils.KEY_ID_HEX_LENGTH));
+    }
+
+    @Test
+    public void testParseKeyIdHex() {
+        assertEquals(0x123456789abcdef0L, SMimeUtils.parseKeyIdHex("0x123456789abcdef0"));
+        assertEquals(0x123456789abcdef0L, SMimeUtils.parseKeyIdHex("0X123456789ABCDEF0"));
+        assertEquals(0xabL, SMimeUtils.parseKeyIdHex("ab"));
+        assertEquals(-1, SMimeUtils.parseKeyIdHex("ffffffffffffffff"));
+
+        Random random = new Random(2);
+        for (int i = 0; i < 1000; i++) {
+            long keyId = random.nextLong();
+            assertEquals(keyId, SMimeUtils.parseKeyIdHex(SMimeUtils.convertKeyIdToHex(keyId)));
+        }
+    }
+
+    @Test
+    public void testParseKeyIdHexMalformed() {
+        String[] malformed = {"", "0x", "0x12345678901234567", "12345678901234567", "0xg",
+                "-1", "0x 1", "0x1 ", "x1"};
+        for (String hex : malformed) {
+            try {
+                SMimeUtils.parseKeyIdHex(hex);
+                fail("parsed " + hex);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testFormatFingerprint() {
+        byte[] fingerprint = {(byte) 0xab, 0x12, (byte) 0xcd, 0x34, 0x05};
+        assertEquals("AB12 CD34 05", SMimeUtils.formatFingerprint(fingerprint));
+        assertEquals("", SMimeUtils.formatFingerprint(new byte[0]));
+        assertEquals("ab:12:cd:34:05", SMimeUtils.appendFingerprint(new StringBuilder(),
+                fingerprint, 1, ':', false).toString());
+        assertEquals("AB12CD3405", SMimeUtils.appendFingerprint(new StringBuilder(),
+                fingerprint, 0, ' ', true).toString());
+        assertEquals("ab12cd3405", SMimeUtils.toHex(fingerprint));
+    }
+}